@@ -0,0 +1,51 @@
+package me.egg82.btorce.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.services.CachedConfigValues;
+import ninja.egg82.service.ServiceLocator;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Leasing a client and handing it back, as Proxy does around every connection, with several threads competing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeaseBenchmark {
+    @Param({ "10", "100" })
+    public int clients;
+
+    @Param({ "1", "4" })
+    public int streamsPerClient;
+
+    private LeaseScheduler scheduler;
+
+    @Setup
+    public void setup() {
+        ServiceLocator.register(CachedConfigValues.builder().build());
+
+        List<TorClientWrapper> wrappers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            wrappers.add(new TorClientWrapper(i, 10000 + i, null));
+        }
+        scheduler = new LeaseScheduler(wrappers, streamsPerClient);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean leaseAndReleaseUncontended() throws InterruptedException { return leaseAndRelease(); }
+
+    @Benchmark
+    @Threads(4)
+    public boolean leaseAndReleaseContended() throws InterruptedException { return leaseAndRelease(); }
+
+    private boolean leaseAndRelease() throws InterruptedException {
+        TorClientWrapper client = scheduler.lease(1L, TimeUnit.SECONDS);
+        return client != null && scheduler.release(client) != null;
+    }
+}
@@ -0,0 +1,98 @@
+package me.egg82.btorce.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import me.egg82.btorce.metrics.ProxyMetrics;
+import me.egg82.btorce.services.CachedConfigValues;
+import ninja.egg82.service.ServiceLocator;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One direction of RequestHandler's relay loop, moving a payload between two loopback socket pairs.
+ * The sockets are rebuilt for every invocation because the relay closes them when it's done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    @Param({ "16384", "1048576" })
+    public int payloadBytes;
+
+    private final ExecutorService peers = Executors.newCachedThreadPool(r -> {
+        Thread retVal = new Thread(r, "RelayBenchmark-Peer");
+        retVal.setDaemon(true);
+        return retVal;
+    });
+
+    private ServerSocket server;
+    private byte[] payload;
+    private RequestHandler handler;
+
+    private Socket source;
+    private Socket destination;
+    private Future<Long> drained;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        ServiceLocator.register(CachedConfigValues.builder().build());
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        payload = new byte[payloadBytes];
+        ThreadLocalRandom.current().nextBytes(payload);
+
+        TorClientWrapper client = new TorClientWrapper(0, 0, null);
+        handler = new RequestHandler(null, new byte[0], peers, null, null, new HedgeStats(), new ProxyMetrics(), 0L);
+        handler.client = client;
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException, InterruptedException, ExecutionException {
+        // The far end of the source writes the payload and hangs up, the far end of the destination reads until EOF
+        Socket writer = new Socket(server.getInetAddress(), server.getLocalPort());
+        source = server.accept();
+        Socket reader = new Socket(server.getInetAddress(), server.getLocalPort());
+        destination = server.accept();
+
+        peers.submit(() -> {
+            try (OutputStream out = writer.getOutputStream()) {
+                out.write(payload);
+            }
+            return null;
+        });
+        drained = peers.submit(() -> {
+            long retVal = 0L;
+            byte[] buffer = new byte[8192];
+            int read;
+            try (InputStream in = reader.getInputStream()) {
+                while ((read = in.read(buffer)) > -1) {
+                    retVal += read;
+                }
+            } finally {
+                writer.close();
+                reader.close();
+            }
+            return retVal;
+        });
+    }
+
+    @Benchmark
+    public long relay() throws IOException, InterruptedException, ExecutionException {
+        // The other direction counts as already finished, so the relay closes both sockets at EOF
+        handler.proxy(source.getInputStream(), destination.getOutputStream(), source, destination, new AtomicInteger(1), false);
+        return drained.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        peers.shutdownNow();
+    }
+}
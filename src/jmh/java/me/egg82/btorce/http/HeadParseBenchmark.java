@@ -0,0 +1,69 @@
+package me.egg82.btorce.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request-head parsing as RequestHandler does it, straight off the buffer and through HttpInput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadParseBenchmark {
+    private static final byte[] ORIGIN_FORM = ("GET /search?q=brute+torce&page=2 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] ABSOLUTE_FORM = ("POST http://api.example.com:8080/v1/items HTTP/1.1\r\n"
+            + "Host: api.example.com:8080\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: 512\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECT = ("CONNECT www.example.com:443 HTTP/1.1\r\n"
+            + "Host: www.example.com:443\r\n"
+            + "Proxy-Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    @Param({ "origin", "absolute", "connect" })
+    public String form;
+
+    private byte[] head;
+    private final HttpHeadParser parser = new HttpHeadParser();
+
+    @Setup
+    public void setup() {
+        switch (form) {
+            case "absolute":
+                head = ABSOLUTE_FORM;
+                break;
+            case "connect":
+                head = CONNECT;
+                break;
+            default:
+                head = ORIGIN_FORM;
+                break;
+        }
+    }
+
+    @Benchmark
+    public HttpHeadParser.Result parse() {
+        parser.reset();
+        return parser.parse(head, 0, head.length);
+    }
+
+    @Benchmark
+    public HttpHeadParser.Result readHead() throws IOException {
+        // Includes the buffering HttpInput does ahead of the parser
+        parser.reset();
+        return new HttpInput(new ByteArrayInputStream(head)).readHead(parser);
+    }
+}
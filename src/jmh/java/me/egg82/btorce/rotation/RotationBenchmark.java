@@ -0,0 +1,40 @@
+package me.egg82.btorce.rotation;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.core.CircuitStats;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The per-lease rotation bookkeeping Proxy does: count the request, then ask the policy. All threads share one circuit, as they would under load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+    private final CircuitStats stats = new CircuitStats();
+    private final RotationPolicy requests = new RequestPolicy(Integer.MAX_VALUE);
+    private final RotationPolicy composite = new CompositePolicy(Arrays.asList(
+            new RequestPolicy(Integer.MAX_VALUE),
+            new BytesPolicy(Long.MAX_VALUE),
+            new AgePolicy(1L, TimeUnit.DAYS),
+            new FailurePolicy(Long.MAX_VALUE)
+    ));
+
+    @Benchmark
+    @Threads(4)
+    public boolean requestPolicy() {
+        stats.recordRequest();
+        return requests.shouldRotate(stats);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean compositePolicy() {
+        stats.recordRequest();
+        return composite.shouldRotate(stats);
+    }
+}
@@ -1,21 +1,34 @@
 package me.egg82.btorce;
 
 import com.subgraph.orchid.TorClient;
-import com.subgraph.orchid.TorInitializationListener;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.backend.CircuitBackend;
+import me.egg82.btorce.backend.ExternalTorBackend;
+import me.egg82.btorce.backend.OrchidBackend;
+import me.egg82.btorce.backend.SimulatedBackend;
+import me.egg82.btorce.backend.TorController;
+import me.egg82.btorce.core.ClientBootstrapper;
+import me.egg82.btorce.core.DirectoryRefresher;
 import me.egg82.btorce.core.Proxy;
+import me.egg82.btorce.metrics.MetricsServer;
+import me.egg82.btorce.core.SharedDirectoryStore;
 import me.egg82.btorce.core.TorClientWrapper;
-import me.egg82.btorce.services.CachedConfigValues;
 import me.egg82.btorce.services.Configuration;
 import me.egg82.btorce.utils.ConfigurationFileUtil;
+import me.egg82.btorce.utils.TimeUtil;
 import ninja.egg82.service.ServiceLocator;
 import ninja.egg82.service.ServiceNotFoundException;
+import ninja.leaping.configurate.ConfigurationNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,14 +39,27 @@ public class BruteTorce {
 
     private final List<TorClientWrapper> loadingClients = new CopyOnWriteArrayList<>();
     private final List<TorClientWrapper> readyClients = new CopyOnWriteArrayList<>();
+    private final List<TorClientWrapper> standbyClients = new CopyOnWriteArrayList<>();
+    private final Object readyLock = new Object();
+    private ClientBootstrapper bootstrapper;
+    private int numClients;
     private Proxy proxy;
+    private MetricsServer metricsServer;
+    private boolean embedded = true;
 
     public BruteTorce(File currentDirectory) {
         this.currentDirectory = currentDirectory;
 
         loadServices();
-        loadMaster();
-        loadTor();
+        CircuitBackend.Factory backends = loadBackend();
+        if (backends == null) {
+            return;
+        }
+        // Only embedded clients build their own circuits, so there's no directory to cache otherwise
+        if (embedded) {
+            loadMaster();
+        }
+        loadTor(backends);
 
         start();
     }
@@ -43,9 +69,117 @@ public class BruteTorce {
         ConfigurationFileUtil.reloadConfig(currentDirectory);
     }
 
+    private CircuitBackend.Factory loadBackend() {
+        Configuration config;
+        try {
+            config = ServiceLocator.get(Configuration.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            return null;
+        }
+
+        String backend = config.getNode("tor", "backend").getString("orchid");
+        if (backend.equalsIgnoreCase("external")) {
+            return loadExternal(config);
+        }
+        if (!backend.equalsIgnoreCase("simulated")) {
+            if (!backend.equalsIgnoreCase("orchid")) {
+                logger.warn("backend \"" + backend + "\" is not known, using orchid.");
+            }
+            return (index, port) -> new OrchidBackend(index, port, currentDirectory);
+        }
+
+        SimulatedBackend.Settings settings;
+        try {
+            settings = new SimulatedBackend.Settings(
+                    config.getNode("tor", "simulation", "latency").getLong(300L),
+                    config.getNode("tor", "simulation", "jitter").getDouble(0.5d),
+                    config.getNode("tor", "simulation", "bandwidth").getLong(512L) * 1024L,
+                    TimeUnit.SECONDS.toMillis(config.getNode("tor", "simulation", "bootstrap").getLong(2L)),
+                    config.getNode("tor", "simulation", "failure-rate").getDouble(0.02d)
+            );
+        } catch (IllegalArgumentException ex) {
+            logger.error("Invalid simulation settings: " + ex.getMessage(), ex);
+            return null;
+        }
+        embedded = false;
+        logger.warn("Using the simulated backend. Traffic will NOT go through Tor.");
+        return (index, port) -> new SimulatedBackend(settings);
+    }
+
+    private CircuitBackend.Factory loadExternal(Configuration config) {
+        List<InetSocketAddress> socks = getAddresses(config.getNode("tor", "external", "socks"), 9050);
+        if (socks.isEmpty()) {
+            logger.error("No external SOCKS ports are set.");
+            return null;
+        }
+
+        String password = config.getNode("tor", "external", "control-password").getString("");
+        String cookiePath = config.getNode("tor", "external", "control-cookie").getString("");
+        File cookie = cookiePath.isEmpty() ? null : new File(cookiePath);
+        int timeout = (int) TimeUnit.SECONDS.toMillis(Math.max(0, config.getNode("tor", "timeout").getInt(20)));
+        boolean newnym = config.getNode("tor", "external", "newnym").getBoolean(false);
+
+        List<TorController> controllers = new ArrayList<>();
+        for (InetSocketAddress address : getAddresses(config.getNode("tor", "external", "control"), 9051)) {
+            controllers.add(new TorController(address, password, cookie, timeout));
+        }
+        if (controllers.size() > 1 && controllers.size() != socks.size()) {
+            logger.error("External control ports must be a single port or one per SOCKS port.");
+            return null;
+        }
+
+        embedded = false;
+        logger.info("Using external tor at " + socks + (controllers.isEmpty() ? ", without a control port" : ", controlled through " + controllers.size() + " control port(s)"));
+        return (index, port) -> {
+            int daemon = index % socks.size();
+            TorController controller = controllers.isEmpty() ? null : controllers.get(controllers.size() == 1 ? 0 : daemon);
+            return new ExternalTorBackend(index, socks.get(daemon), controller, timeout, newnym);
+        };
+    }
+
+    private List<InetSocketAddress> getAddresses(ConfigurationNode node, int defaultPort) {
+        List<String> values = new ArrayList<>();
+        if (node.isList()) {
+            for (ConfigurationNode child : node.getChildrenList()) {
+                values.add(child.getString(""));
+            }
+        } else {
+            values.add(node.getString(""));
+        }
+
+        List<InetSocketAddress> retVal = new ArrayList<>();
+        for (String value : values) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+
+            int colon = value.lastIndexOf(':');
+            try {
+                retVal.add(colon == -1 ? new InetSocketAddress(value, defaultPort) : new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+            } catch (IllegalArgumentException ignored) {
+                logger.warn("\"" + value + "\" is not a valid address, skipping.");
+            }
+        }
+        return retVal;
+    }
+
     private void loadMaster() {
         logger.info("Loading master cache..");
 
+        Configuration config;
+        try {
+            config = ServiceLocator.get(Configuration.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            return;
+        }
+
+        SharedDirectoryStore directoryStore = new SharedDirectoryStore();
+        DirectoryRefresher refresher = new DirectoryRefresher(currentDirectory, directoryStore, Math.max(0, config.getNode("tor", "bootstrap-timeout").getInt(120)), TimeUnit.SECONDS);
+        refresher.recover();
+
         File masterDir = new File(currentDirectory, "cache-master");
         if (masterDir.exists() && masterDir.isFile()) {
             try {
@@ -73,66 +207,61 @@ public class BruteTorce {
 
             client.stop();
         }
+
+        try {
+            directoryStore.load(masterDir);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+            return;
+        }
+        logger.info("Loaded " + (directoryStore.getSize() / 1024L) + " KiB of shared directory data");
+        ServiceLocator.register(directoryStore);
+
+        String refresh = config.getNode("tor", "directory-refresh").getString("3 hours");
+        Optional<Long> refreshTime = TimeUtil.getTime(refresh);
+        Optional<TimeUnit> refreshUnit = TimeUtil.getUnit(refresh);
+        if (!refreshTime.isPresent() || !refreshUnit.isPresent()) {
+            logger.warn("directory-refresh is not a valid time, master cache will not be refreshed.");
+            return;
+        }
+        if (refreshTime.get() > 0L) {
+            refresher.start(refreshTime.get(), refreshUnit.get());
+        }
     }
 
     // https://stackoverflow.com/questions/29171643/java-tor-lib-how-to-setup-orchid-tor-lib-with-java
-    private void loadTor() {
+    private void loadTor(CircuitBackend.Factory backends) {
         logger.info("Loading Tor..");
 
         Configuration config;
-        CachedConfigValues cachedConfig;
         try {
             config = ServiceLocator.get(Configuration.class);
-            cachedConfig = ServiceLocator.get(CachedConfigValues.class);
         } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
             logger.error(ex.getMessage(), ex);
             return;
         }
 
-        int clients = config.getNode("tor", "connections").getInt(10);
-        for (int i = 0; i < clients; i++) {
+        numClients = config.getNode("tor", "connections").getInt(10);
+        int standby = Math.max(0, config.getNode("tor", "standby").getInt(1));
+        for (int i = 0; i < numClients + standby; i++) {
             int port = getPort();
-            logger.info("[" + i + "]: SOCKS at " + port);
-            TorClientWrapper client = new TorClientWrapper(i, port, currentDirectory);
-            loadingClients.add(client);
-
-            final int clientNum = i;
-
-            client.getClient().addInitializationListener(new TorInitializationListener() {
-                public void initializationProgress(String message, int percent) {
-                    if (cachedConfig.getDebug()) {
-                        logger.debug("[" + clientNum + "] [" + percent + "%]: " + message);
-                    }
-                }
-                public void initializationCompleted() {
-                    logger.info("[" + clientNum + "]: Circuit complete!");
-
-                    loadingClients.remove(client);
-                    readyClients.add(client);
-                }
-            });
+            if (embedded) {
+                logger.info("[" + i + "]: SOCKS at " + port);
+            }
+            loadingClients.add(new TorClientWrapper(i, port, backends.create(i, port)));
         }
+
+        bootstrapper = new ClientBootstrapper(
+                Math.max(1, config.getNode("tor", "bootstrap-concurrency").getInt(4)),
+                Math.max(0, config.getNode("tor", "bootstrap-timeout").getInt(120)),
+                TimeUnit.SECONDS,
+                backends
+        );
     }
 
     private void start() {
         logger.info("Staring Tor..");
 
-        for (TorClientWrapper client : loadingClients) {
-            client.getClient().start();
-        }
-
-        logger.info("Waiting for all clients to start..");
-
-        while (!loadingClients.isEmpty()) {
-            try {
-                Thread.sleep(500L);
-            } catch (InterruptedException ignored) {
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        logger.info("Starting proxy..");
-
         Configuration config;
         try {
             config = ServiceLocator.get(Configuration.class);
@@ -142,11 +271,41 @@ public class BruteTorce {
         }
 
         int port = config.getNode("tor", "port").getInt(13860);
-        int threads = config.getNode("tor", "connections").getInt(10);
+        int metricsPort = config.getNode("tor", "metrics-port").getInt(0);
+        int minReady = Math.min(numClients, Math.max(1, config.getNode("tor", "min-ready").getInt(3)));
 
-        try {
-            proxy = new Proxy(port, threads, readyClients, currentDirectory);
-        } catch (IOException ignored) {}
+        for (TorClientWrapper client : loadingClients) {
+            bootstrapper.bootstrap(client, this::ready);
+        }
+
+        logger.info("Waiting for " + minReady + " of " + numClients + " clients to start..");
+
+        synchronized (readyLock) {
+            while (readyClients.size() < minReady) {
+                try {
+                    readyLock.wait();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            logger.info("Starting proxy with " + readyClients.size() + " clients, the rest join as they finish..");
+
+            try {
+                proxy = new Proxy(port, numClients, readyClients, standbyClients, bootstrapper);
+            } catch (IOException ignored) {}
+        }
+
+        if (proxy != null && metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metricsPort, proxy);
+                metricsServer.start();
+                logger.info("Serving metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }
 
         do {
             try {
@@ -157,6 +316,26 @@ public class BruteTorce {
         } while (true);
     }
 
+    private void ready(TorClientWrapper client) {
+        synchronized (readyLock) {
+            // Could be a rebuilt replacement if the first attempt timed out
+            loadingClients.removeIf(c -> c.getIndex() == client.getIndex());
+            if (proxy != null) {
+                // Already serving, so late clients go straight into the live pool
+                proxy.addClient(client);
+                return;
+            }
+
+            // Whichever clients finish first serve, the rest wait as standbys
+            if (readyClients.size() < numClients) {
+                readyClients.add(client);
+            } else {
+                standbyClients.add(client);
+            }
+            readyLock.notifyAll();
+        }
+    }
+
     private int getPort() {
         int port;
         do {
@@ -0,0 +1,42 @@
+package me.egg82.btorce.backend;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Whatever carries a client's streams out to the internet. Normally an Orchid Tor client, but anything that can open a stream by host and port will do.
+ */
+public interface CircuitBackend {
+    /**
+     * Starts bootstrapping in the background.
+     */
+    void start(ProgressListener listener);
+
+    /**
+     * @param timeoutMillis the longest to wait, or 0 to wait forever
+     * @return false if the backend wasn't ready within the timeout
+     */
+    boolean waitUntilReady(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Opens a stream to the remote. Blocks until it's open.
+     */
+    Socket connect(String host, int port) throws IOException;
+
+    /**
+     * Moves new streams onto fresh circuits without a full rebuild, like Tor's NEWNYM signal.
+     *
+     * @return the number of circuits replaced, or -1 if the backend needs rebuilding instead
+     */
+    int newIdentity();
+
+    void stop();
+
+    interface ProgressListener {
+        void progress(String message, int percent);
+    }
+
+    interface Factory {
+        CircuitBackend create(int index, int port);
+    }
+}
@@ -0,0 +1,125 @@
+package me.egg82.btorce.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client backed by an external tor daemon's SOCKS port, costing next to nothing in this process.
+ * Each client sends its own SOCKS username, which tor's IsolateSOCKSAuth (on by default) turns into its own circuit. A new password moves the client onto a new circuit.
+ */
+public class ExternalTorBackend implements CircuitBackend {
+    private static final long POLL_MILLIS = 500L;
+    // Circuits from a previous run are still open in the daemon, so usernames are never reused between runs
+    private static final String SESSION = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private static final AtomicLong isolation = new AtomicLong(0L);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final InetSocketAddress socks;
+    private final TorController controller;
+    private final int timeoutMillis;
+    private final boolean newnym;
+    private final String username;
+
+    private volatile String password = Long.toString(isolation.incrementAndGet());
+    private volatile ProgressListener listener = (message, percent) -> {};
+    private volatile boolean stopped = false;
+
+    /**
+     * @param controller the daemon's ControlPort, or null to only check that the SOCKS port is open
+     * @param timeoutMillis how long to wait for the SOCKS port to open a stream, or 0 to wait forever
+     * @param newnym whether a new identity also sends NEWNYM, which retires every circuit in the daemon and not just this client's
+     */
+    public ExternalTorBackend(int index, InetSocketAddress socks, TorController controller, int timeoutMillis, boolean newnym) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis cannot be < 0");
+        }
+
+        this.socks = socks;
+        this.controller = controller;
+        this.timeoutMillis = timeoutMillis;
+        this.newnym = newnym;
+        this.username = "btorce-" + SESSION + "-" + index;
+    }
+
+    public void start(ProgressListener listener) {
+        this.listener = listener;
+        listener.progress("Waiting for tor at " + socks.getHostString() + ":" + socks.getPort(), 0);
+    }
+
+    public boolean waitUntilReady(long timeoutMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        int last = 0;
+        while (!stopped) {
+            int progress;
+            try {
+                progress = controller != null ? controller.getBootstrapProgress() : probe();
+            } catch (IOException ex) {
+                progress = 0;
+            }
+            if (progress != last) {
+                listener.progress("tor at " + socks.getHostString() + ":" + socks.getPort() + " bootstrapping", progress);
+                last = progress;
+            }
+            if (progress >= 100) {
+                return true;
+            }
+
+            if (timeoutMillis > 0L && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= timeoutMillis) {
+                return false;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return false;
+    }
+
+    public Socket connect(String host, int port) throws IOException {
+        if (stopped) {
+            throw new IOException("External tor client is stopped");
+        }
+
+        Socket retVal = new Socket();
+        try {
+            retVal.connect(socks, timeoutMillis);
+            // Only the handshake is bounded here, the stream itself gets the proxy's usual timeouts
+            retVal.setSoTimeout(timeoutMillis);
+            Socks5.connect(retVal, host, port, username, password);
+            retVal.setSoTimeout(0);
+        } catch (IOException ex) {
+            try {
+                retVal.close();
+            } catch (IOException ignored) {}
+            throw ex;
+        }
+        return retVal;
+    }
+
+    public int newIdentity() {
+        password = Long.toString(isolation.incrementAndGet());
+
+        // The new password is enough for this client. NEWNYM would also retire the circuits every other client is using, so it's opt-in
+        if (newnym && controller != null) {
+            try {
+                controller.newIdentity();
+            } catch (IOException ex) {
+                logger.warn("Could not send NEWNYM to " + controller.getAddress() + ": " + ex.getMessage());
+            }
+        }
+        return 1;
+    }
+
+    public void stop() { stopped = true; }
+
+    private int probe() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(socks, (int) Math.min(POLL_MILLIS * 4L, timeoutMillis == 0 ? Integer.MAX_VALUE : timeoutMillis));
+        }
+        return 100;
+    }
+}
@@ -0,0 +1,47 @@
+package me.egg82.btorce.backend;
+
+import com.subgraph.orchid.TorClient;
+import com.subgraph.orchid.TorInitializationListener;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeoutException;
+import me.egg82.btorce.utils.TorUtil;
+
+/**
+ * A real Tor client, built on Orchid.
+ */
+public class OrchidBackend implements CircuitBackend {
+    private final TorClient client;
+
+    public OrchidBackend(int index, int port, File currentDirectory) { this.client = TorUtil.getClient(index, port, currentDirectory); }
+
+    public void start(ProgressListener listener) {
+        client.addInitializationListener(new TorInitializationListener() {
+            public void initializationProgress(String message, int percent) { listener.progress(message, percent); }
+            public void initializationCompleted() {}
+        });
+        client.start();
+    }
+
+    public boolean waitUntilReady(long timeoutMillis) throws InterruptedException {
+        try {
+            if (timeoutMillis > 0L) {
+                client.waitUntilReady(timeoutMillis);
+            } else {
+                client.waitUntilReady();
+            }
+        } catch (TimeoutException ignored) {
+            return false;
+        }
+        return true;
+    }
+
+    public Socket connect(String host, int port) throws IOException { return client.getSocketFactory().createSocket(host, port); }
+
+    public int newIdentity() { return TorUtil.newIdentity(client); }
+
+    public void stop() { client.stop(); }
+
+    public TorClient getClient() { return client; }
+}
@@ -0,0 +1,143 @@
+package me.egg82.btorce.backend;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.concurrent.*;
+
+/**
+ * A stand-in for a Tor client that opens plain sockets straight to the remote, for load testing without a network.
+ * Each simulated circuit has its own round-trip latency and bandwidth, and stream opens fail at a set rate, so scheduling and rotation see realistic behaviour.
+ * Remotes are connected to directly, so point traffic at local origin servers.
+ */
+public class SimulatedBackend implements CircuitBackend {
+    private static final ScheduledExecutorService bootstrapThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("SimulatedBootstrap-%d").setDaemon(true).build());
+
+    private final Settings settings;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private volatile Circuit circuit;
+    private volatile boolean stopped = false;
+
+    public SimulatedBackend(Settings settings) {
+        this.settings = settings;
+        this.circuit = new Circuit(settings);
+    }
+
+    public void start(ProgressListener listener) {
+        // Some bootstraps never finish, like a client stuck on a bad guard, so the bootstrapper's timeout gets exercised
+        if (ThreadLocalRandom.current().nextDouble() < settings.failureRate) {
+            listener.progress("Simulated bootstrap stalled", 10);
+            return;
+        }
+
+        long bootstrapMillis = settings.sample(settings.bootstrapMillis);
+        listener.progress("Simulated bootstrap started", 0);
+        bootstrapThread.schedule(() -> {
+            if (!stopped) {
+                listener.progress("Simulated bootstrap done", 100);
+                ready.countDown();
+            }
+        }, bootstrapMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean waitUntilReady(long timeoutMillis) throws InterruptedException {
+        if (timeoutMillis > 0L) {
+            return ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        ready.await();
+        return true;
+    }
+
+    public Socket connect(String host, int port) throws IOException {
+        if (stopped) {
+            throw new IOException("Simulated client is stopped");
+        }
+
+        Circuit current = circuit;
+        // Opening a stream costs one round trip over the circuit
+        sleep(current.latencyMillis);
+        if (ThreadLocalRandom.current().nextDouble() < settings.failureRate) {
+            throw new IOException("Simulated stream to " + host + ":" + port + " failed");
+        }
+        return new SimulatedSocket(new Socket(host, port), current.latencyMillis, current.upload, current.download);
+    }
+
+    public int newIdentity() {
+        // A fresh circuit goes through different relays, so it gets a fresh latency and bandwidth
+        circuit = new Circuit(settings);
+        return 1;
+    }
+
+    public void stop() { stopped = true; }
+
+    static void sleep(long millis) throws IOException {
+        if (millis <= 0L) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    private static class Circuit {
+        private final long latencyMillis;
+        private final Throttle upload;
+        private final Throttle download;
+
+        private Circuit(Settings settings) {
+            this.latencyMillis = settings.sample(settings.latencyMillis);
+            long bandwidth = settings.sample(settings.bandwidthBytes);
+            this.upload = new Throttle(bandwidth);
+            this.download = new Throttle(bandwidth);
+        }
+    }
+
+    public static class Settings {
+        private final long latencyMillis;
+        private final double jitter;
+        private final long bandwidthBytes;
+        private final long bootstrapMillis;
+        private final double failureRate;
+
+        /**
+         * @param latencyMillis the median round trip over a circuit
+         * @param jitter how widely circuits differ from the medians, as the sigma of a log-normal spread. 0 makes every circuit the same
+         * @param bandwidthBytes the median bytes per second each circuit carries in each direction, or 0 for no limit
+         * @param bootstrapMillis the median time for a client to bootstrap
+         * @param failureRate the chance, from 0 to 1, that a stream open fails or a bootstrap never finishes
+         */
+        public Settings(long latencyMillis, double jitter, long bandwidthBytes, long bootstrapMillis, double failureRate) {
+            if (latencyMillis < 0L) {
+                throw new IllegalArgumentException("latencyMillis cannot be < 0");
+            }
+            if (jitter < 0.0d) {
+                throw new IllegalArgumentException("jitter cannot be < 0");
+            }
+            if (bandwidthBytes < 0L) {
+                throw new IllegalArgumentException("bandwidthBytes cannot be < 0");
+            }
+            if (bootstrapMillis < 0L) {
+                throw new IllegalArgumentException("bootstrapMillis cannot be < 0");
+            }
+            if (failureRate < 0.0d || failureRate > 1.0d) {
+                throw new IllegalArgumentException("failureRate must be >= 0 and <= 1");
+            }
+
+            this.latencyMillis = latencyMillis;
+            this.jitter = jitter;
+            this.bandwidthBytes = bandwidthBytes;
+            this.bootstrapMillis = bootstrapMillis;
+            this.failureRate = failureRate;
+        }
+
+        private long sample(long median) {
+            // Log-normal, so most circuits sit near the median and a few are much worse, like real Tor paths
+            return (long) (median * Math.exp(jitter * ThreadLocalRandom.current().nextGaussian()));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package me.egg82.btorce.backend;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * A plain socket slowed down to look like a Tor stream: a round trip of delay whenever the direction of traffic turns around, and a bandwidth cap in each direction.
+ */
+class SimulatedSocket extends Socket {
+    private final Socket socket;
+    private final long latencyMillis;
+    private final InputStream input;
+    private final OutputStream output;
+
+    // Set by a write and cleared by the next read, which is where a response has to travel back over the circuit
+    private volatile boolean awaitingResponse = false;
+
+    SimulatedSocket(Socket socket, long latencyMillis, Throttle upload, Throttle download) throws IOException {
+        this.socket = socket;
+        this.latencyMillis = latencyMillis;
+
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        this.input = new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (awaitingResponse) {
+                    awaitingResponse = false;
+                    SimulatedBackend.sleep(SimulatedSocket.this.latencyMillis);
+                }
+                int retVal = in.read(b, off, len);
+                download.acquire(retVal);
+                return retVal;
+            }
+
+            public int available() throws IOException { return in.available(); }
+
+            public void close() throws IOException { SimulatedSocket.this.close(); }
+        };
+        this.output = new OutputStream() {
+            public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                upload.acquire(len);
+                out.write(b, off, len);
+                awaitingResponse = true;
+            }
+
+            public void flush() throws IOException { out.flush(); }
+
+            public void close() throws IOException { SimulatedSocket.this.close(); }
+        };
+    }
+
+    public InputStream getInputStream() { return input; }
+
+    public OutputStream getOutputStream() { return output; }
+
+    public void close() throws IOException { socket.close(); }
+
+    public boolean isClosed() { return socket.isClosed(); }
+
+    public boolean isConnected() { return socket.isConnected(); }
+
+    public boolean isBound() { return socket.isBound(); }
+
+    public void shutdownInput() throws IOException { socket.shutdownInput(); }
+
+    public void shutdownOutput() throws IOException { socket.shutdownOutput(); }
+
+    public boolean isInputShutdown() { return socket.isInputShutdown(); }
+
+    public boolean isOutputShutdown() { return socket.isOutputShutdown(); }
+
+    public void setSoTimeout(int timeout) throws SocketException { socket.setSoTimeout(timeout); }
+
+    public int getSoTimeout() throws SocketException { return socket.getSoTimeout(); }
+
+    public void setTcpNoDelay(boolean on) throws SocketException { socket.setTcpNoDelay(on); }
+
+    public boolean getTcpNoDelay() throws SocketException { return socket.getTcpNoDelay(); }
+
+    public InetAddress getInetAddress() { return socket.getInetAddress(); }
+
+    public int getPort() { return socket.getPort(); }
+
+    public InetAddress getLocalAddress() { return socket.getLocalAddress(); }
+
+    public int getLocalPort() { return socket.getLocalPort(); }
+
+    public SocketAddress getRemoteSocketAddress() { return socket.getRemoteSocketAddress(); }
+
+    public SocketAddress getLocalSocketAddress() { return socket.getLocalSocketAddress(); }
+
+    public String toString() { return "Simulated" + socket; }
+}
@@ -0,0 +1,89 @@
+package me.egg82.btorce.backend;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Just enough of a SOCKS5 client (RFC 1928) with username/password auth (RFC 1929) to open streams through tor.
+ * Hostnames are always sent unresolved so DNS happens at the exit, not locally.
+ */
+class Socks5 {
+    private Socks5() {}
+
+    static void connect(Socket socket, String host, int port, String username, String password) throws IOException {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        if (user.length > 255 || pass.length > 255 || name.length > 255) {
+            throw new IOException("SOCKS field too long");
+        }
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        // Only offering username/password, since the credentials are what keep circuits apart
+        out.write(new byte[] { 0x05, 0x01, 0x02 });
+        out.flush();
+        if (in.readUnsignedByte() != 0x05) {
+            throw new IOException("Not a SOCKS5 server");
+        }
+        int method = in.readUnsignedByte();
+        if (method == 0x02) {
+            ByteArrayOutputStream auth = new ByteArrayOutputStream(3 + user.length + pass.length);
+            auth.write(0x01);
+            auth.write(user.length);
+            auth.write(user);
+            auth.write(pass.length);
+            auth.write(pass);
+            out.write(auth.toByteArray());
+            out.flush();
+            in.readUnsignedByte();
+            if (in.readUnsignedByte() != 0x00) {
+                throw new IOException("SOCKS authentication rejected");
+            }
+        } else if (method != 0x00) {
+            throw new IOException("SOCKS server accepted no offered auth method");
+        }
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream(7 + name.length);
+        request.write(new byte[] { 0x05, 0x01, 0x00, 0x03 });
+        request.write(name.length);
+        request.write(name);
+        request.write(port >> 8);
+        request.write(port);
+        out.write(request.toByteArray());
+        out.flush();
+
+        if (in.readUnsignedByte() != 0x05) {
+            throw new IOException("Not a SOCKS5 server");
+        }
+        int reply = in.readUnsignedByte();
+        in.readUnsignedByte();
+        // The bound address isn't needed, but has to be read past before the stream starts
+        int type = in.readUnsignedByte();
+        int length = type == 0x01 ? 4 : type == 0x04 ? 16 : type == 0x03 ? in.readUnsignedByte() : -1;
+        if (length == -1) {
+            throw new IOException("Bad SOCKS address type " + type);
+        }
+        in.readFully(new byte[length + 2]);
+
+        if (reply != 0x00) {
+            throw new IOException("SOCKS connect to " + host + ":" + port + " failed: " + getReason(reply));
+        }
+    }
+
+    private static String getReason(int reply) {
+        switch (reply) {
+            case 0x01: return "general failure";
+            case 0x02: return "not allowed by ruleset";
+            case 0x03: return "network unreachable";
+            case 0x04: return "host unreachable";
+            case 0x05: return "connection refused";
+            case 0x06: return "TTL expired";
+            case 0x07: return "command not supported";
+            case 0x08: return "address type not supported";
+            default: return "error " + reply;
+        }
+    }
+}
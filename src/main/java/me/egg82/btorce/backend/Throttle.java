@@ -0,0 +1,28 @@
+package me.egg82.btorce.backend;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces bytes to a fixed rate. Shared by every stream on a simulated circuit, since they share its bandwidth.
+ */
+class Throttle {
+    private final double nanosPerByte;
+    private long nextFree = System.nanoTime();
+
+    Throttle(long bytesPerSecond) { this.nanosPerByte = bytesPerSecond > 0L ? TimeUnit.SECONDS.toNanos(1L) / (double) bytesPerSecond : 0.0d; }
+
+    void acquire(int bytes) throws IOException {
+        if (nanosPerByte == 0.0d || bytes <= 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFree = Math.max(now, nextFree) + (long) (bytes * nanosPerByte);
+            wait = nextFree - now;
+        }
+        SimulatedBackend.sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+}
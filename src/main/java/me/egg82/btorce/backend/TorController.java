@@ -0,0 +1,155 @@
+package me.egg82.btorce.backend;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to an external tor daemon's ControlPort, shared by every client on that daemon.
+ * The connection is opened when first needed and reopened after any error.
+ */
+public class TorController {
+    // tor ignores NEWNYM more often than this anyway, so there's no point sending it
+    private static final long NEWNYM_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10L);
+
+    private final InetSocketAddress address;
+    private final String password;
+    private final File cookie;
+    private final int timeoutMillis;
+
+    private Socket socket = null;
+    private BufferedReader in = null;
+    private Writer out = null;
+    private long lastNewnym = System.nanoTime() - NEWNYM_INTERVAL_NANOS;
+
+    /**
+     * @param password the HashedControlPassword password, or null
+     * @param cookie tor's control_auth_cookie for CookieAuthentication, or null
+     * @param timeoutMillis how long to wait for the daemon, or 0 to wait forever
+     */
+    public TorController(InetSocketAddress address, String password, File cookie, int timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis cannot be < 0");
+        }
+
+        this.address = address;
+        this.password = password;
+        this.cookie = cookie;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the daemon's bootstrap progress, from 0 to 100
+     */
+    public synchronized int getBootstrapProgress() throws IOException {
+        for (String line : command("GETINFO status/bootstrap-phase")) {
+            int start = line.indexOf("PROGRESS=");
+            if (start > -1) {
+                int end = line.indexOf(' ', start);
+                try {
+                    return Integer.parseInt(line.substring(start + 9, end == -1 ? line.length() : end));
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Bad bootstrap status: " + line);
+                }
+            }
+        }
+        throw new IOException("No bootstrap status from " + address);
+    }
+
+    /**
+     * Sends SIGNAL NEWNYM, so every circuit on the daemon stops taking new streams.
+     *
+     * @return false if a NEWNYM was sent too recently for tor to act on another one
+     */
+    public synchronized boolean newIdentity() throws IOException {
+        if (System.nanoTime() - lastNewnym < NEWNYM_INTERVAL_NANOS) {
+            return false;
+        }
+        command("SIGNAL NEWNYM");
+        lastNewnym = System.nanoTime();
+        return true;
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    public InetSocketAddress getAddress() { return address; }
+
+    private List<String> command(String command) throws IOException {
+        try {
+            if (socket == null) {
+                open();
+            }
+            return send(command);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private void open() throws IOException {
+        socket = new Socket();
+        socket.connect(address, timeoutMillis);
+        socket.setSoTimeout(timeoutMillis);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1));
+
+        if (password != null && !password.isEmpty()) {
+            send("AUTHENTICATE \"" + password.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+        } else if (cookie != null) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : Files.readAllBytes(cookie.toPath())) {
+                hex.append(String.format("%02x", b));
+            }
+            send("AUTHENTICATE " + hex);
+        } else {
+            send("AUTHENTICATE");
+        }
+    }
+
+    /**
+     * @return the reply lines, without their status codes
+     */
+    private List<String> send(String command) throws IOException {
+        out.write(command + "\r\n");
+        out.flush();
+
+        List<String> retVal = new ArrayList<>();
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null) {
+                throw new EOFException("ControlPort at " + address + " closed the connection");
+            }
+            if (line.length() < 4) {
+                throw new IOException("Bad ControlPort reply: " + line);
+            }
+            if (!line.startsWith("250")) {
+                throw new IOException("\"" + command.split(" ")[0] + "\" failed: " + line);
+            }
+            retVal.add(line.substring(4));
+
+            // Multi-line values end with a lone dot
+            if (line.charAt(3) == '+') {
+                String data;
+                while ((data = in.readLine()) != null && !data.equals(".")) {
+                    retVal.add(data);
+                }
+            }
+        } while (line.charAt(3) != ' ');
+        return retVal;
+    }
+}
@@ -0,0 +1,111 @@
+package me.egg82.btorce.core;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the number of connections being proxied at once, with a bounded queue in front of it.
+ * Connections that don't fit in the queue, or wait in it too long, are shed so the client can fail fast and retry later.
+ */
+public class AdmissionControl {
+    private final int maxInFlight;
+    private final int maxPending;
+    private final long maxWaitNanos;
+
+    private final Semaphore inFlight;
+    private final AtomicInteger admitted = new AtomicInteger(0);
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param maxInFlight the number of connections proxied at once, or 0 for no limit
+     * @param maxPending the number of connections allowed to wait for a slot
+     * @param maxWait how long a connection may wait for a slot
+     */
+    public AdmissionControl(int maxInFlight, int maxPending, long maxWait, TimeUnit unit) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight cannot be < 0");
+        }
+        if (maxPending < 0) {
+            throw new IllegalArgumentException("maxPending cannot be < 0");
+        }
+
+        this.maxInFlight = maxInFlight;
+        this.maxPending = maxPending;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null;
+    }
+
+    /**
+     * Called as soon as a connection is accepted. Doesn't block.
+     *
+     * @return false if the connection should be shed right away, otherwise {@link #enter(long)} must follow
+     */
+    public boolean admit() {
+        accepted.increment();
+        if (inFlight == null) {
+            return true;
+        }
+
+        int current;
+        do {
+            current = admitted.get();
+            if (current >= maxInFlight + maxPending) {
+                shed.increment();
+                return false;
+            }
+        } while (!admitted.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Waits for a slot, counting time already spent queued since the connection was accepted.
+     *
+     * @return false if the connection waited too long and should be shed, otherwise {@link #exit()} must follow
+     */
+    public boolean enter(long acceptedNanos) {
+        if (inFlight == null) {
+            return true;
+        }
+
+        long remaining = maxWaitNanos - (System.nanoTime() - acceptedNanos);
+        try {
+            if (inFlight.tryAcquire(Math.max(0L, remaining), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        admitted.decrementAndGet();
+        shed.increment();
+        return false;
+    }
+
+    public void exit() {
+        if (inFlight == null) {
+            return;
+        }
+
+        inFlight.release();
+        admitted.decrementAndGet();
+    }
+
+    public int getInFlight() { return inFlight == null ? 0 : maxInFlight - inFlight.availablePermits(); }
+
+    public int getPending() { return inFlight == null ? 0 : Math.max(0, admitted.get() - getInFlight()); }
+
+    public long getAccepted() { return accepted.sum(); }
+
+    public long getShed() { return shed.sum(); }
+
+    /**
+     * @return the fraction of accepted connections that were shed
+     */
+    public double getShedRate() {
+        long total = accepted.sum();
+        return total == 0L ? 0.0d : shed.sum() / (double) total;
+    }
+}
@@ -0,0 +1,112 @@
+package me.egg82.btorce.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponentially-weighted moving averages of how a client's circuit has been performing lately.
+ */
+public class CircuitStats {
+    private static final double ALPHA = 0.2d;
+    // Below this many streams the averages are mostly noise, so the circuit isn't judged yet
+    public static final int MIN_SAMPLES = 5;
+    // The response size the score prices bandwidth at, roughly a typical page resource
+    private static final double REFERENCE_BYTES = 65536.0d;
+
+    private double connectMillis = 0.0d;
+    private double firstByteMillis = 0.0d;
+    private double bytesPerSecond = 0.0d;
+    private int connectSamples = 0;
+    private int firstByteSamples = 0;
+    private int throughputSamples = 0;
+    private int consecutiveFailures = 0;
+    private long failures = 0L;
+    private int requests = 0;
+    private long bytes = 0L;
+    private long createdNanos = System.nanoTime();
+
+    public CircuitStats() {}
+
+    public synchronized void recordRequest() { requests++; }
+
+    /**
+     * Records bytes relayed over the circuit in either direction.
+     */
+    public synchronized void recordBytes(long bytes) {
+        if (bytes > 0L) {
+            this.bytes += bytes;
+        }
+    }
+
+    public synchronized void recordConnect(long nanos) {
+        connectMillis = ewma(connectMillis, nanos / 1000000.0d, connectSamples++);
+    }
+
+    /**
+     * Records a stream that failed to open or timed out, for the circuit breaker.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        failures++;
+    }
+
+    public synchronized void recordSuccess() { consecutiveFailures = 0; }
+
+    public synchronized void recordFirstByte(long nanos) {
+        firstByteMillis = ewma(firstByteMillis, nanos / 1000000.0d, firstByteSamples++);
+    }
+
+    public synchronized void recordThroughput(long bytes, long nanos) {
+        if (nanos <= 0L) {
+            return;
+        }
+        bytesPerSecond = ewma(bytesPerSecond, bytes * 1000000000.0d / nanos, throughputSamples++);
+    }
+
+    /**
+     * Expected time in milliseconds for a new stream to connect, start returning data, and deliver a typical response at the circuit's recent throughput. Lower is better.
+     * Circuits without samples score 0 so they get picked and measured.
+     */
+    public synchronized double getScore() {
+        double transferMillis = throughputSamples == 0 || bytesPerSecond <= 0.0d ? 0.0d : REFERENCE_BYTES * 1000.0d / bytesPerSecond;
+        return connectMillis + firstByteMillis + transferMillis;
+    }
+
+    public synchronized int getSamples() { return connectSamples; }
+
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+
+    public synchronized long getFailures() { return failures; }
+
+    public synchronized int getRequests() { return requests; }
+
+    public synchronized long getBytes() { return bytes; }
+
+    public synchronized long getAgeNanos() { return System.nanoTime() - createdNanos; }
+
+    public synchronized double getConnectMillis() { return connectMillis; }
+
+    public synchronized double getFirstByteMillis() { return firstByteMillis; }
+
+    public synchronized double getBytesPerSecond() { return bytesPerSecond; }
+
+    public synchronized void reset() {
+        connectMillis = 0.0d;
+        firstByteMillis = 0.0d;
+        bytesPerSecond = 0.0d;
+        connectSamples = 0;
+        firstByteSamples = 0;
+        throughputSamples = 0;
+        consecutiveFailures = 0;
+        failures = 0L;
+        requests = 0;
+        bytes = 0L;
+        createdNanos = System.nanoTime();
+    }
+
+    public synchronized String toString() {
+        return String.format("connect %.0fms, first byte %.0fms, %.1f KiB/s (%d samples), %d requests, %d KiB, %d failures, %ds old",
+                connectMillis, firstByteMillis, bytesPerSecond / 1024.0d, connectSamples, requests, bytes / 1024L, failures, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - createdNanos));
+    }
+
+    private static double ewma(double average, double sample, int samples) { return samples == 0 ? sample : average + ALPHA * (sample - average); }
+}
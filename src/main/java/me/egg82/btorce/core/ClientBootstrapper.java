@@ -0,0 +1,96 @@
+package me.egg82.btorce.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import me.egg82.btorce.backend.CircuitBackend;
+import me.egg82.btorce.services.CachedConfigValues;
+import ninja.egg82.service.ServiceLocator;
+import ninja.egg82.service.ServiceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts clients a few at a time so a large pool doesn't bootstrap all at once.
+ * Clients that don't finish within the timeout are torn down and rebuilt on the same index and port.
+ */
+public class ClientBootstrapper {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ExecutorService threadPool;
+    private final long timeoutMillis;
+    private final CircuitBackend.Factory backends;
+    private final AtomicInteger bootstrapping = new AtomicInteger(0);
+
+    public ClientBootstrapper(int concurrency, long timeout, TimeUnit unit, CircuitBackend.Factory backends) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency cannot be < 1");
+        }
+
+        // Each bootstrap holds its thread until the client is ready, so the pool size is the concurrency limit
+        this.threadPool = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder().setNameFormat("Bootstrap-%d").build());
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.backends = backends;
+    }
+
+    /**
+     * Queues the client to be started. The callback runs on a bootstrap thread once the client is ready, which may be a rebuilt replacement.
+     */
+    public void bootstrap(TorClientWrapper client, Consumer<TorClientWrapper> ready) {
+        bootstrapping.incrementAndGet();
+        threadPool.execute(() -> start(client, ready, 1));
+    }
+
+    /**
+     * Queues a brand new client on the same index and port as an old one, for when the old one can't be rotated in place.
+     */
+    public void rebuild(TorClientWrapper client, Consumer<TorClientWrapper> ready) { bootstrap(newClient(client), ready); }
+
+    public void shutdown() { threadPool.shutdownNow(); }
+
+    /**
+     * @return the number of clients queued or bootstrapping, including retries
+     */
+    public int getBootstrapping() { return bootstrapping.get(); }
+
+    private void start(TorClientWrapper client, Consumer<TorClientWrapper> ready, int attempt) {
+        CachedConfigValues cachedConfig;
+        try {
+            cachedConfig = ServiceLocator.get(CachedConfigValues.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            bootstrapping.decrementAndGet();
+            return;
+        }
+
+        client.getBackend().start((message, percent) -> {
+            if (cachedConfig.getDebug()) {
+                logger.debug("[" + client.getIndex() + "] [" + percent + "%]: " + message);
+            }
+        });
+
+        try {
+            if (!client.getBackend().waitUntilReady(timeoutMillis)) {
+                logger.warn("[" + client.getIndex() + "]: Bootstrap timed out after " + timeoutMillis + "ms (attempt " + attempt + "), retrying");
+
+                client.getBackend().stop();
+                TorClientWrapper newClient = newClient(client);
+                // Back of the queue, so clients that haven't had a turn yet go first
+                threadPool.execute(() -> start(newClient, ready, attempt + 1));
+                return;
+            }
+        } catch (InterruptedException ignored) {
+            client.getBackend().stop();
+            bootstrapping.decrementAndGet();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        logger.info("[" + client.getIndex() + "]: Circuit complete!");
+        bootstrapping.decrementAndGet();
+        ready.accept(client);
+    }
+
+    private TorClientWrapper newClient(TorClientWrapper client) { return new TorClientWrapper(client.getIndex(), client.getPort(), backends.create(client.getIndex(), client.getPort())); }
+}
@@ -0,0 +1,74 @@
+package me.egg82.btorce.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking Tor stream connects on their own sized pool, away from the common pool.
+ * Cancelling a returned future interrupts the connect if it's running, and a socket that arrives after its future was cancelled or completed is closed.
+ */
+public class ConnectExecutor {
+    private final ThreadPoolExecutor threadPool;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    public ConnectExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads cannot be < 1");
+        }
+
+        this.threadPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setNameFormat("Connect-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return a future for the connected socket, completed with null if the connect failed
+     */
+    public CompletableFuture<Socket> submit(Callable<Socket> connect) {
+        CompletableFuture<Socket> retVal = new CompletableFuture<>();
+        Future<?> task = threadPool.submit(() -> {
+            // Abandoned while still queued, don't bother opening a stream nobody will use
+            if (retVal.isDone()) {
+                return;
+            }
+
+            inFlight.incrementAndGet();
+            Socket socket = null;
+            try {
+                socket = connect.call();
+            } catch (Exception ignored) {
+            } finally {
+                inFlight.decrementAndGet();
+            }
+
+            if (!retVal.complete(socket) && socket != null) {
+                close(socket);
+            }
+        });
+        retVal.whenComplete((v, ex) -> {
+            if (retVal.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return retVal;
+    }
+
+    /**
+     * @return the number of connects waiting for a thread
+     */
+    public int getPending() { return threadPool.getQueue().size(); }
+
+    /**
+     * @return the number of connects currently running
+     */
+    public int getInFlight() { return inFlight.get(); }
+
+    public void shutdown() { threadPool.shutdownNow(); }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,123 @@
+package me.egg82.btorce.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.subgraph.orchid.TorClient;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps cache-master current by bootstrapping a throwaway client into a staging copy of it on a schedule.
+ * Once the staging copy is ready it replaces cache-master and is published to the shared directory store, so clients built afterwards start from a fresh consensus.
+ */
+public class DirectoryRefresher {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScheduledExecutorService refreshThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("DirectoryRefresh-%d").build());
+
+    private final File masterDir;
+    private final File stagingDir;
+    private final File oldDir;
+    private final SharedDirectoryStore directoryStore;
+    private final long timeoutMillis;
+
+    public DirectoryRefresher(File currentDirectory, SharedDirectoryStore directoryStore, long timeout, TimeUnit unit) {
+        this.masterDir = new File(currentDirectory, "cache-master");
+        this.stagingDir = new File(currentDirectory, "cache-master.new");
+        this.oldDir = new File(currentDirectory, "cache-master.old");
+        this.directoryStore = directoryStore;
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    public void start(long interval, TimeUnit unit) {
+        refreshThread.scheduleWithFixedDelay(() -> {
+            // An exception escaping here would cancel every future refresh
+            try {
+                refresh();
+            } catch (RuntimeException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }, interval, interval, unit);
+    }
+
+    public void stop() { refreshThread.shutdownNow(); }
+
+    /**
+     * Puts back the previous cache-master if a swap was interrupted between its two renames.
+     */
+    public void recover() {
+        if (!masterDir.exists() && oldDir.isDirectory() && !oldDir.renameTo(masterDir)) {
+            logger.error("Could not restore " + oldDir.getName() + " to " + masterDir.getName());
+        }
+    }
+
+    public boolean refresh() {
+        logger.info("Refreshing master cache..");
+        long start = System.nanoTime();
+
+        try {
+            if (stagingDir.exists()) {
+                FileUtils.forceDelete(stagingDir);
+            }
+            // Starting from the current cache means only what changed has to be downloaded
+            if (masterDir.isDirectory()) {
+                FileUtils.copyDirectory(masterDir, stagingDir);
+            }
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+            return false;
+        }
+
+        TorClient client = new TorClient();
+        client.getConfig().setDataDirectory(stagingDir);
+        client.disableDashboard();
+        client.start();
+
+        try {
+            if (timeoutMillis > 0L) {
+                client.waitUntilReady(timeoutMillis);
+            } else {
+                client.waitUntilReady();
+            }
+        } catch (TimeoutException ignored) {
+            logger.warn("Master cache refresh timed out after " + timeoutMillis + "ms, keeping the current cache");
+            return false;
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            client.stop();
+        }
+
+        try {
+            swap();
+            directoryStore.load(masterDir);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+            return false;
+        }
+
+        logger.info("Master cache refreshed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms (" + (directoryStore.getSize() / 1024L) + " KiB)");
+        return true;
+    }
+
+    private void swap() throws IOException {
+        // Directories can't be renamed over each other, so the old one steps aside first and recover() covers the gap
+        if (oldDir.exists()) {
+            FileUtils.forceDelete(oldDir);
+        }
+        if (masterDir.exists()) {
+            Files.move(masterDir.toPath(), oldDir.toPath());
+        }
+        Files.move(stagingDir.toPath(), masterDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.deleteQuietly(oldDir);
+    }
+}
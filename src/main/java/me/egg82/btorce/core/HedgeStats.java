@@ -0,0 +1,85 @@
+package me.egg82.btorce.core;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool-wide stream connect times, used to pick the hedging delay, plus counters for how often hedging fires and wins.
+ * Failed and timed-out attempts are included at the time they took, up to their attempt's budget.
+ */
+public class HedgeStats {
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    // Until there are enough samples for a percentile to mean anything
+    private static final long DEFAULT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final long[] samples = new long[WINDOW];
+    private int next = 0;
+    private int count = 0;
+    private int unsorted = 0;
+    private double cachedPercentile = -1.0d;
+    private long cachedDelay = DEFAULT_DELAY_NANOS;
+
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+
+    public HedgeStats() {}
+
+    public synchronized void recordConnect(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        unsorted++;
+        connects.increment();
+    }
+
+    public void recordHedge() { hedges.increment(); }
+
+    public void recordWin() { wins.increment(); }
+
+    /**
+     * @return the given percentile (0-100) of the most recent connect times
+     */
+    public synchronized long getDelayNanos(double percentile) {
+        if (count < MIN_SAMPLES) {
+            return DEFAULT_DELAY_NANOS;
+        }
+
+        // Sorting the window on every connect would be wasteful, the percentile barely moves between a few samples
+        if (unsorted >= 16 || percentile != cachedPercentile) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0d * count) - 1;
+            cachedDelay = sorted[Math.max(0, Math.min(count - 1, index))];
+            cachedPercentile = percentile;
+            unsorted = 0;
+        }
+        return cachedDelay;
+    }
+
+    public long getConnects() { return connects.sum(); }
+
+    public long getHedges() { return hedges.sum(); }
+
+    public long getWins() { return wins.sum(); }
+
+    /**
+     * @return the fraction of connect attempts that started a second, hedged connect
+     */
+    public double getHedgeRate() {
+        long total = connects.sum();
+        return total == 0L ? 0.0d : hedges.sum() / (double) total;
+    }
+
+    /**
+     * @return the fraction of hedged connects where the second circuit won
+     */
+    public double getWinRate() {
+        long total = hedges.sum();
+        return total == 0L ? 0.0d : wins.sum() / (double) total;
+    }
+}
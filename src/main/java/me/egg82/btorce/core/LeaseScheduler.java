@@ -0,0 +1,538 @@
+package me.egg82.btorce.core;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import me.egg82.btorce.rotation.CompositePolicy;
+import me.egg82.btorce.rotation.RotationPolicy;
+
+public class LeaseScheduler {
+    private static final long MEDIAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<TorClientWrapper, Slot> slots = new IdentityHashMap<>();
+    private final List<Slot> available = new ArrayList<>();
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private final List<Slot> expired = new ArrayList<>();
+
+    private final int streamsPerClient;
+    private final RotationPolicy policy;
+    private final RetireListener listener;
+
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong(0L);
+    private final AtomicLong medianUpdated = new AtomicLong(System.nanoTime() - MEDIAN_INTERVAL_NANOS);
+    private volatile double medianScore = -1.0d;
+
+    public LeaseScheduler(Collection<TorClientWrapper> clients, int streamsPerClient) { this(clients, streamsPerClient, new CompositePolicy(Collections.emptyList()), (client, reason) -> {}); }
+
+    /**
+     * @param policy checked on every lease, both before the client is chosen and after the lease is counted
+     * @param listener told when a lease retires its client, once the lock is released
+     */
+    public LeaseScheduler(Collection<TorClientWrapper> clients, int streamsPerClient, RotationPolicy policy, RetireListener listener) {
+        if (streamsPerClient < 1) {
+            throw new IllegalArgumentException("streamsPerClient cannot be < 1");
+        }
+
+        this.streamsPerClient = streamsPerClient;
+        this.policy = policy;
+        this.listener = listener;
+
+        for (TorClientWrapper client : clients) {
+            Slot slot = new Slot(client);
+            slots.put(client, slot);
+            slot.queued = true;
+            available.add(slot);
+        }
+    }
+
+    public TorClientWrapper lease(long timeout, TimeUnit unit) throws InterruptedException { return lease(timeout, unit, null); }
+
+    /**
+     * Leases one stream on a client, parking the calling thread in FIFO order behind any other waiters.
+     * Among clients with spare streams, two are sampled at random and the one with the better latency score wins (power of two choices).
+     * The lease is counted against the client and its rotation policy checked under the same lock, so concurrent leases can't overshoot the policy.
+     * A client the policy already rotates, such as one that aged out while idle, is retired instead of chosen.
+     *
+     * @param exclude a client that must not be handed back, such as one that just failed, or null
+     * @return the leased client, or null if none became available before the timeout
+     */
+    public TorClientWrapper lease(long timeout, TimeUnit unit, TorClientWrapper exclude) throws InterruptedException {
+        long start = System.nanoTime();
+        long remaining = unit.toNanos(timeout);
+
+        TorClientWrapper retVal;
+        boolean retired;
+        List<Slot> expired = Collections.emptyList();
+        lock.lock();
+        try {
+            // A slot is only left idle if every waiter excludes it, so taking it here can't jump the queue
+            Slot slot = pickServing(exclude);
+            expired = drainExpired();
+            if (slot != null) {
+                retired = takePicked(slot);
+                recordLease(start);
+                retVal = slot.client;
+            } else {
+                Waiter waiter = new Waiter(lock.newCondition(), exclude);
+                waiters.add(waiter);
+                try {
+                    while (waiter.client == null && remaining > 0L) {
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    waiters.remove(waiter);
+                    if (waiter.client == null) {
+                        throw ex;
+                    }
+                    // Already handed a client, which has been counted and maybe retired, so keep it and leave the interrupt for the caller
+                    Thread.currentThread().interrupt();
+                }
+
+                if (waiter.client == null) {
+                    waiters.remove(waiter);
+                    timeouts.increment();
+                    return null;
+                }
+
+                recordLease(start);
+                retVal = waiter.client;
+                retired = waiter.retired;
+            }
+        } finally {
+            lock.unlock();
+            notifyExpired(expired);
+        }
+
+        if (retired) {
+            listener.retired(retVal, null);
+        }
+        return retVal;
+    }
+
+    /**
+     * Leases one stream on a client other than the excluded one, but only if one is free right now.
+     * Unlike a lease with no timeout, a miss never queues and isn't counted as a timeout, and a hit isn't counted in the wait stats.
+     *
+     * @return the leased client, or null if none was free
+     */
+    public TorClientWrapper tryLease(TorClientWrapper exclude) {
+        TorClientWrapper retVal;
+        boolean retired;
+        List<Slot> expired = Collections.emptyList();
+        lock.lock();
+        try {
+            Slot slot = pickServing(exclude);
+            expired = drainExpired();
+            if (slot == null) {
+                return null;
+            }
+            retired = takePicked(slot);
+            retVal = slot.client;
+        } finally {
+            lock.unlock();
+            notifyExpired(expired);
+        }
+
+        if (retired) {
+            listener.retired(retVal, null);
+        }
+        return retVal;
+    }
+
+    /**
+     * Returns one stream's lease on the client.
+     *
+     * @return why the client was retired if this was its last stream, meaning it can now be rotated, otherwise null
+     */
+    public RetireReason release(TorClientWrapper client) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(client);
+            return slot != null && releaseSlot(slot) ? slot.reason : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops handing out new streams on the client. Streams already leased keep running.
+     *
+     * @return true if the client had no leased streams, meaning it can be rotated immediately
+     */
+    public boolean retire(TorClientWrapper client) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(client);
+            if (slot == null || slot.retired) {
+                return false;
+            }
+            return retireSlot(slot, RetireReason.POLICY);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void add(TorClientWrapper client) {
+        lock.lock();
+        try {
+            Slot slot = new Slot(client);
+            slots.put(client, slot);
+            offer(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of clients still taking new streams
+     */
+    public int getServing() {
+        lock.lock();
+        try {
+            int retVal = 0;
+            for (Slot slot : slots.values()) {
+                if (!slot.retired) {
+                    retVal++;
+                }
+            }
+            return retVal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the clients still taking new streams
+     */
+    public List<TorClientWrapper> getClients() {
+        lock.lock();
+        try {
+            List<TorClientWrapper> retVal = new ArrayList<>();
+            for (Slot slot : slots.values()) {
+                if (!slot.retired) {
+                    retVal.add(slot.client);
+                }
+            }
+            return retVal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retires the client unless it's already retired.
+     *
+     * @param reason handed back by {@link #release(TorClientWrapper)} once the client's last stream ends
+     * @return true if the client was retired by this call
+     */
+    public boolean eject(TorClientWrapper client, RetireReason reason) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(client);
+            if (slot == null || slot.retired) {
+                return false;
+            }
+            retireSlot(slot, reason);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops handing out new streams on the client if its score has fallen too far behind the rest of the pool.
+     * Only clients with enough samples are judged, against the median of every serving client that has them too.
+     * The median is refreshed at most once a second, so releases don't sort the whole pool under the lock.
+     *
+     * @return true if the client was retired by this call
+     */
+    public boolean retireIfSlow(TorClientWrapper client, double factor) {
+        CircuitStats stats = client.getStats();
+        if (stats.getSamples() < CircuitStats.MIN_SAMPLES) {
+            return false;
+        }
+        double median = getMedianScore();
+        if (median < 0.0d || stats.getScore() <= median * factor) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            Slot slot = slots.get(client);
+            if (slot == null || slot.retired) {
+                return false;
+            }
+            retireSlot(slot, RetireReason.SLOW);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the median score of serving clients with enough samples, or -1 if too few have them to compare against
+     */
+    public double getMedianScore() {
+        long now = System.nanoTime();
+        long last = medianUpdated.get();
+        if (now - last < MEDIAN_INTERVAL_NANOS || !medianUpdated.compareAndSet(last, now)) {
+            return medianScore;
+        }
+
+        // Only the copy needs the lock, the sort happens outside it
+        double[] scores;
+        int count = 0;
+        lock.lock();
+        try {
+            scores = new double[slots.size()];
+            for (Slot slot : slots.values()) {
+                if (!slot.retired && slot.client.getStats().getSamples() >= CircuitStats.MIN_SAMPLES) {
+                    scores[count++] = slot.client.getStats().getScore();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (count < 3) {
+            medianScore = -1.0d;
+        } else {
+            Arrays.sort(scores, 0, count);
+            int middle = count / 2;
+            medianScore = count % 2 == 0 ? (scores[middle - 1] + scores[middle]) / 2.0d : scores[middle];
+        }
+        return medianScore;
+    }
+
+    public int getIdle() {
+        lock.lock();
+        try {
+            return available.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getStreamsPerClient() { return streamsPerClient; }
+
+    public long getLeases() { return leases.sum(); }
+
+    public long getTimeouts() { return timeouts.sum(); }
+
+    public double getAverageWaitMillis() {
+        long count = leases.sum();
+        return count == 0L ? 0.0d : waitNanos.sum() / (double) count / 1000000.0d;
+    }
+
+    public double getMaxWaitMillis() { return maxWaitNanos.get() / 1000000.0d; }
+
+    private boolean releaseSlot(Slot slot) {
+        slot.active--;
+        if (slot.retired) {
+            if (slot.active == 0) {
+                slots.remove(slot.client);
+                return true;
+            }
+            return false;
+        }
+
+        if (!slot.queued) {
+            offer(slot);
+        }
+        return false;
+    }
+
+    private void offer(Slot slot) {
+        // Hand off directly to the longest waiters so late arrivals can't barge past them
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (!slot.retired && slot.active < streamsPerClient && iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            if (waiter.exclude == slot.client) {
+                continue;
+            }
+            iterator.remove();
+            waiter.client = slot.client;
+            waiter.retired = take(slot);
+            waiter.condition.signal();
+        }
+
+        if (!slot.retired && slot.active < streamsPerClient) {
+            slot.queued = true;
+            available.add(slot);
+        }
+    }
+
+    /**
+     * Counts a new stream on the slot, retiring it if that was its last under the rotation policy.
+     *
+     * @return true if the slot was retired
+     */
+    private boolean take(Slot slot) {
+        slot.active++;
+        slot.client.getStats().recordRequest();
+        if (policy.shouldRotate(slot.client.getStats())) {
+            retireSlot(slot, getReason(slot));
+            return true;
+        }
+        return false;
+    }
+
+    private RetireReason getReason(Slot slot) { return policy.isFailing(slot.client.getStats()) ? RetireReason.FAILURES : RetireReason.POLICY; }
+
+    /**
+     * Picks a slot whose circuit the policy hasn't already rotated. Time-based limits can run out while a slot sits idle,
+     * and counting one more lease on those would serve a stream the policy no longer allows.
+     * Slots retired here with no streams left are queued for {@link #drainExpired()}.
+     */
+    private Slot pickServing(TorClientWrapper exclude) {
+        Slot retVal;
+        while ((retVal = pick(exclude)) != null && policy.shouldRotate(retVal.client.getStats())) {
+            retVal.queued = false;
+            if (retireSlot(retVal, getReason(retVal))) {
+                expired.add(retVal);
+            }
+        }
+        return retVal;
+    }
+
+    private List<Slot> drainExpired() {
+        if (expired.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Slot> retVal = new ArrayList<>(expired);
+        expired.clear();
+        return retVal;
+    }
+
+    private void notifyExpired(List<Slot> slots) {
+        for (Slot slot : slots) {
+            listener.retired(slot.client, slot.reason);
+        }
+    }
+
+    /**
+     * Takes a stream on a slot just removed by {@link #pick(TorClientWrapper)}, putting it back if it has streams to spare.
+     *
+     * @return true if the slot was retired
+     */
+    private boolean takePicked(Slot slot) {
+        slot.queued = false;
+        boolean retVal = take(slot);
+        if (!retVal && slot.active < streamsPerClient) {
+            slot.queued = true;
+            available.add(slot);
+        }
+        return retVal;
+    }
+
+    private boolean retireSlot(Slot slot, RetireReason reason) {
+        slot.retired = true;
+        slot.reason = reason;
+        if (slot.queued) {
+            available.remove(slot);
+            slot.queued = false;
+        }
+        if (slot.active == 0) {
+            slots.remove(slot.client);
+            return true;
+        }
+        return false;
+    }
+
+    private Slot pick(TorClientWrapper exclude) {
+        int size = available.size();
+        Slot excluded = exclude != null ? slots.get(exclude) : null;
+        int skip = excluded != null && excluded.queued ? available.indexOf(excluded) : -1;
+        int candidates = skip >= 0 ? size - 1 : size;
+        if (candidates == 0) {
+            return null;
+        }
+
+        int index = 0;
+        if (candidates > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates);
+            int second = random.nextInt(candidates - 1);
+            if (second >= first) {
+                second++;
+            }
+            first = skip >= 0 && first >= skip ? first + 1 : first;
+            second = skip >= 0 && second >= skip ? second + 1 : second;
+            index = available.get(first).client.getStats().getScore() <= available.get(second).client.getStats().getScore() ? first : second;
+        } else if (skip == 0) {
+            index = 1;
+        }
+
+        // Swap with the last element so removal doesn't shift the list
+        Slot retVal = available.get(index);
+        Slot last = available.remove(size - 1);
+        if (index < size - 1) {
+            available.set(index, last);
+        }
+        return retVal;
+    }
+
+    private void recordLease(long start) {
+        long waited = System.nanoTime() - start;
+        leases.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    private static class Slot {
+        private final TorClientWrapper client;
+        private int active = 0;
+        private boolean retired = false;
+        private boolean queued = false;
+        private RetireReason reason = null;
+
+        private Slot(TorClientWrapper client) {
+            this.client = client;
+        }
+    }
+
+    private static class Waiter {
+        private final Condition condition;
+        private final TorClientWrapper exclude;
+        private TorClientWrapper client = null;
+        private boolean retired = false;
+
+        private Waiter(Condition condition, TorClientWrapper exclude) {
+            this.condition = condition;
+            this.exclude = exclude;
+        }
+    }
+
+    public enum RetireReason {
+        /** The rotation policy says the circuit has done enough work */
+        POLICY,
+        /** The circuit kept failing, so the client may be at fault and not just its route */
+        FAILURES,
+        /** The circuit scored too far behind the rest of the pool */
+        SLOW
+    }
+
+    public interface RetireListener {
+        /**
+         * @param reason why the client was retired if it had no streams left, meaning it can be rotated now, otherwise null
+         */
+        void retired(TorClientWrapper client, RetireReason reason);
+    }
+}
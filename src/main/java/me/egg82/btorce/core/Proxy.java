@@ -1,17 +1,22 @@
 package me.egg82.btorce.core;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.subgraph.orchid.TorClient;
-import com.subgraph.orchid.TorInitializationListener;
-import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Collection;
-import java.util.Queue;
+import java.util.Deque;
+import java.util.Optional;
 import java.util.concurrent.*;
+import me.egg82.btorce.core.nio.NioFrontEnd;
+import me.egg82.btorce.metrics.ConnectionTracing;
+import me.egg82.btorce.metrics.Phase;
+import me.egg82.btorce.metrics.PhaseSpan;
+import me.egg82.btorce.metrics.ProxyMetrics;
+import me.egg82.btorce.rotation.RotationPolicy;
 import me.egg82.btorce.services.CachedConfigValues;
-import me.egg82.btorce.utils.TorUtil;
+import me.egg82.btorce.utils.HttpUtil;
+import me.egg82.btorce.utils.ThreadUtil;
 import ninja.egg82.service.ServiceLocator;
 import ninja.egg82.service.ServiceNotFoundException;
 import org.slf4j.Logger;
@@ -20,27 +25,96 @@ import org.slf4j.LoggerFactory;
 public class Proxy {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private final Queue<TorClientWrapper> clients;
-    private final ConcurrentMap<Integer, Integer> clientUsageMap = new ConcurrentHashMap<>();
-    private final File currentDirectory;
+    private final LeaseScheduler clients;
+    private final Deque<TorClientWrapper> standby = new ConcurrentLinkedDeque<>();
+    private final int numClients;
+    private final ClientBootstrapper bootstrapper;
 
     private final ServerSocket server;
+    private final NioFrontEnd frontEnd;
 
     private final ExecutorService listenThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Proxy-%d").build());
     private final ExecutorService threadPool;
+    private final ExecutorService relayPool;
+    private final ConnectExecutor connectPool;
+
+    private final HedgeStats hedgeStats = new HedgeStats();
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private final AdmissionControl admission;
 
     private volatile boolean running = true;
 
-    public Proxy(int port, int numThreads, Collection<TorClientWrapper> clients, File currentDirectory) throws IOException {
-        this.clients = new ConcurrentLinkedQueue<>(clients);
-        this.currentDirectory = currentDirectory;
+    public Proxy(int port, int numThreads, Collection<TorClientWrapper> clients, Collection<TorClientWrapper> standby, ClientBootstrapper bootstrapper) throws IOException {
+        CachedConfigValues cachedConfig;
+        try {
+            cachedConfig = ServiceLocator.get(CachedConfigValues.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            throw new IOException("Could not get cached config.", ex);
+        }
 
-        this.threadPool = Executors.newWorkStealingPool(numThreads);
+        // Uses are counted per stream as they're leased, so a client stops taking new streams as soon as its policy says to rotate
+        this.clients = new LeaseScheduler(clients, cachedConfig.getStreamsPerConnection(), cachedConfig.getRotationPolicy(), (client, reason) -> {
+            if (cachedConfig.getDebug()) {
+                logger.debug("[" + client.getIndex() + "]: Rotating circuit (" + client.getStats() + ")");
+            }
+            promoteStandby(client, cachedConfig);
+            if (reason != null) {
+                rotate(client, reason, cachedConfig);
+            }
+        });
+        this.standby.addAll(standby);
+        // Not every client has to be ready yet, the rest are added as they finish bootstrapping
+        this.numClients = numThreads;
+        this.bootstrapper = bootstrapper;
+        this.admission = new AdmissionControl(cachedConfig.getMaxConnections(), cachedConfig.getMaxPending(), cachedConfig.getMaxQueueWait(), TimeUnit.SECONDS);
+
+        Optional<ExecutorService> virtualPool = cachedConfig.getVirtualThreads() ? ThreadUtil.newVirtualThreadPerTaskExecutor("RequestHandler-") : Optional.empty();
+        if (cachedConfig.getVirtualThreads() && !virtualPool.isPresent()) {
+            logger.warn("Virtual threads are not supported by this JVM, falling back to platform threads.");
+        }
 
-        for (TorClientWrapper client : clients) {
-            clientUsageMap.put(client.getPort(), 0);
+        if (virtualPool.isPresent()) {
+            // Handlers and both relay pumps all get their own virtual thread, so blocking I/O costs no platform thread
+            this.threadPool = virtualPool.get();
+            this.relayPool = virtualPool.get();
+        } else {
+            // Each client may carry several streams at once, and every stream needs its own handler thread
+            // Every handler pumps one direction itself and the other on the relay pool, so the two are sized the same
+            int handlerThreads = numThreads * cachedConfig.getStreamsPerConnection();
+            this.threadPool = Executors.newWorkStealingPool(handlerThreads);
+            this.relayPool = Executors.newFixedThreadPool(handlerThreads, new ThreadFactoryBuilder().setNameFormat("Relay-%d").build());
         }
+        // A hedge or retry can have two connects running for one handler, hence the default of double
+        this.connectPool = new ConnectExecutor(cachedConfig.getConnectThreads() > 0 ? cachedConfig.getConnectThreads() : numThreads * cachedConfig.getStreamsPerConnection() * 2);
 
+        if (cachedConfig.getNio()) {
+            this.server = null;
+            try {
+                this.frontEnd = new NioFrontEnd(port, cachedConfig.getEventLoops(), cachedConfig.getHeadTimeout(), TimeUnit.SECONDS, (socket, head) -> {
+                    // The admission wait starts once the request head is in, since idle time before it isn't waiting on us
+                    long received = System.nanoTime();
+                    if (cachedConfig.getDebug()) {
+                        logger.debug("New connection accepted");
+                    }
+                    metrics.recordAccepted();
+                    long connection = ConnectionTracing.nextId();
+                    PhaseSpan acceptSpan = ConnectionTracing.begin(Phase.ACCEPT, connection);
+                    if (!admission.admit()) {
+                        acceptSpan.finish(-1, null, -1, 0L);
+                        shed(socket, "queue full", cachedConfig);
+                        return;
+                    }
+                    threadPool.execute(() -> handle(socket, head, received, connection, acceptSpan, cachedConfig));
+                });
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+                throw ex;
+            }
+            return;
+        }
+
+        this.frontEnd = null;
         try {
             this.server = new ServerSocket(port);
         } catch (IOException ex) {
@@ -63,61 +137,210 @@ public class Proxy {
         while (running) {
             try {
                 Socket socket = server.accept();
-                TorClientWrapper client = getNextClient();
+                long accepted = System.nanoTime();
                 if (cachedConfig.getDebug()) {
                     logger.debug("New connection accepted");
                 }
-                threadPool.execute(() -> {
-                    new RequestHandler(socket, client.getClient()).start();
-                    Integer result = clientUsageMap.compute(client.getPort(), (k, v) -> {
-                        if (v == null) {
-                            v = 0;
-                        }
-
-                        v += 1;
-
-                        if (v >= cachedConfig.getMaxUse()) {
-                            return 0;
-                        }
-                        return v;
-                    });
-
-                    if (result > 0) {
-                        clients.add(client);
-                        return;
-                    }
-
-                    if (cachedConfig.getDebug()) {
-                        logger.debug("[" + client.getIndex() + "]: Creating new route");
-                    }
-
-                    client.getClient().stop();
-                    TorClientWrapper newClient = new TorClientWrapper(client.getIndex(), client.getPort(), currentDirectory);
-                    newClient.getClient().addInitializationListener(new TorInitializationListener() {
-                        public void initializationProgress(String message, int percent) {
-                            if (cachedConfig.getDebug()) {
-                                logger.debug("[" + newClient.getIndex() + "] [" + percent + "%]: " + message);
-                            }
-                        }
-                        public void initializationCompleted() {
-                            logger.info("[" + newClient.getIndex() + "]: Circuit complete!");
-
-                            clients.add(newClient);
-                        }
-                    });
-                    newClient.getClient().start();
-                });
+                metrics.recordAccepted();
+                long connection = ConnectionTracing.nextId();
+                PhaseSpan acceptSpan = ConnectionTracing.begin(Phase.ACCEPT, connection);
+                // Turned away here, before it costs a thread or a queue slot
+                if (!admission.admit()) {
+                    acceptSpan.finish(-1, null, -1, 0L);
+                    shed(socket, "queue full", cachedConfig);
+                    continue;
+                }
+                threadPool.execute(() -> handle(socket, new byte[0], accepted, connection, acceptSpan, cachedConfig));
             } catch (IOException ex) {
                 logger.error(ex.getMessage(), ex);
             }
         }
     }
 
-    private TorClientWrapper getNextClient() {
+    private void handle(Socket socket, byte[] head, long accepted, long connection, PhaseSpan acceptSpan, CachedConfigValues cachedConfig) {
+        boolean admitted = admission.enter(accepted);
+        acceptSpan.finish(-1, null, -1, 0L);
+        if (!admitted) {
+            shed(socket, "waited over " + cachedConfig.getMaxQueueWait() + " seconds", cachedConfig);
+            return;
+        }
+        metrics.recordAdmissionWait(System.nanoTime() - accepted);
+
+        try {
+            proxy(socket, head, connection, cachedConfig);
+        } finally {
+            admission.exit();
+        }
+    }
+
+    private void shed(Socket socket, String reason, CachedConfigValues cachedConfig) {
+        if (cachedConfig.getDebug()) {
+            logger.debug("Shedding connection (" + reason + "), sending 503. Shed rate " + String.format("%.1f", admission.getShedRate() * 100.0d) + "% ("
+                    + admission.getInFlight() + " in flight, " + admission.getPending() + " pending)");
+        }
+        metrics.recordRejected();
+        HttpUtil.reject(socket, 503, "Service Unavailable", cachedConfig.getRetryAfter());
+    }
+
+    private void proxy(Socket socket, byte[] head, long connection, CachedConfigValues cachedConfig) {
+        // The handler leases a client for each request once its head is in, and returns it between requests
+        RequestHandler handler = new RequestHandler(socket, head, relayPool, connectPool, new RequestHandler.Leases() {
+            public TorClientWrapper lease() { return getNextClient(cachedConfig); }
+
+            public TorClientWrapper reroute(TorClientWrapper failed, long timeout, TimeUnit unit) throws InterruptedException { return Proxy.this.reroute(failed, timeout, unit, cachedConfig); }
+
+            public TorClientWrapper tryLease(TorClientWrapper exclude) { return clients.tryLease(exclude); }
+
+            public void release(TorClientWrapper client) { finish(client, cachedConfig); }
+        }, hedgeStats, metrics, connection);
+        handler.start();
+    }
+
+    private TorClientWrapper reroute(TorClientWrapper failed, long timeout, TimeUnit unit, CachedConfigValues cachedConfig) throws InterruptedException {
+        // Eject before leasing, and exclude it from the lease in case it isn't ejected yet, so a broken client can't be handed straight back
+        checkFailures(failed, cachedConfig);
+
+        TorClientWrapper client = clients.lease(timeout, unit, failed);
+        if (client == null) {
+            return null;
+        }
+        finish(failed, cachedConfig);
+        return client;
+    }
+
+    private void checkRotation(TorClientWrapper client, CachedConfigValues cachedConfig) {
+        RotationPolicy policy = cachedConfig.getRotationPolicy();
+        if (policy.shouldRotate(client.getStats()) && clients.eject(client, policy.isFailing(client.getStats()) ? LeaseScheduler.RetireReason.FAILURES : LeaseScheduler.RetireReason.POLICY)) {
+            if (cachedConfig.getDebug()) {
+                logger.debug("[" + client.getIndex() + "]: Rotating circuit (" + client.getStats() + ")");
+            }
+            promoteStandby(client, cachedConfig);
+        }
+    }
+
+    private void checkFailures(TorClientWrapper client, CachedConfigValues cachedConfig) {
+        int failures = client.getStats().getConsecutiveFailures();
+        if (cachedConfig.getMaxFailures() > 0 && failures >= cachedConfig.getMaxFailures() && clients.eject(client, LeaseScheduler.RetireReason.FAILURES)) {
+            logger.info("[" + client.getIndex() + "]: Ejecting circuit after " + failures + " failed connections in a row");
+            promoteStandby(client, cachedConfig);
+        }
+    }
+
+    private void finish(TorClientWrapper client, CachedConfigValues cachedConfig) {
+        checkFailures(client, cachedConfig);
+        // Bytes, age and failures change while streams run, so they're checked again as each one ends
+        checkRotation(client, cachedConfig);
+        if (cachedConfig.getSlowCircuitFactor() > 0.0d && clients.retireIfSlow(client, cachedConfig.getSlowCircuitFactor())) {
+            logger.info("[" + client.getIndex() + "]: Retiring slow circuit (" + client.getStats() + ")");
+            promoteStandby(client, cachedConfig);
+        }
+
+        LeaseScheduler.RetireReason reason = clients.release(client);
+        if (reason != null) {
+            rotate(client, reason, cachedConfig);
+        }
+    }
+
+    private void promoteStandby(TorClientWrapper retired, CachedConfigValues cachedConfig) {
+        // The retired client still finishes its streams, but it takes no new ones, so a ready standby covers for it right away
+        // Same lock as addClient, so a client finishing its bootstrap meanwhile can't be dropped or fill the same gap twice
+        synchronized (standby) {
+            if (clients.getServing() >= numClients) {
+                return;
+            }
+
+            TorClientWrapper client = standby.poll();
+            if (client == null) {
+                if (cachedConfig.getDebug()) {
+                    logger.debug("[" + retired.getIndex() + "]: No standby ready, serving with one less connection until it's rebuilt");
+                }
+                return;
+            }
+
+            if (cachedConfig.getDebug()) {
+                logger.debug("[" + client.getIndex() + "]: Standby replacing [" + retired.getIndex() + "]");
+            }
+            clients.add(client);
+        }
+    }
+
+    private void rotate(TorClientWrapper client, LeaseScheduler.RetireReason reason, CachedConfigValues cachedConfig) {
+        // Pooled streams ride the old circuit, so they go with it
+        client.getUpstreamPool().drain();
+
+        // A new identity only costs a circuit build, whereas a new client bootstraps from scratch
+        // A client that kept failing may be broken itself and not just its route, so it's always rebuilt
+        int circuits = reason == LeaseScheduler.RetireReason.FAILURES ? -1 : client.getBackend().newIdentity();
+        if (circuits >= 0) {
+            if (cachedConfig.getDebug()) {
+                logger.debug("[" + client.getIndex() + "]: New route requested (" + circuits + " circuits closed)");
+            }
+            client.getUpstreamPool().reopen();
+            client.getStats().reset();
+            metrics.recordRotation();
+            addClient(client);
+            return;
+        }
+
+        if (cachedConfig.getDebug()) {
+            logger.debug("[" + client.getIndex() + "]: Creating new route");
+        }
+
+        client.getBackend().stop();
+        metrics.recordRebuild();
+        bootstrapper.rebuild(client, this::addClient);
+    }
+
+    /**
+     * Adds a ready client, either to the serving pool if it's short or to the standbys.
+     */
+    public void addClient(TorClientWrapper client) {
+        // Fill the serving pool first if no standby was around to cover the retirement, otherwise refill the standbys
+        synchronized (standby) {
+            if (clients.getServing() < numClients) {
+                clients.add(client);
+            } else {
+                standby.add(client);
+            }
+        }
+    }
+
+    private TorClientWrapper getNextClient(CachedConfigValues cachedConfig) {
+        // Admission queueing has its own limit and histogram, so the lease budget and wait only cover the lease itself
+        long start = System.nanoTime();
         TorClientWrapper client;
-        do {
-            client = clients.poll();
-        } while (client == null);
+        try {
+            client = clients.lease(cachedConfig.getLeaseTimeout(), TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (client == null && cachedConfig.getDebug()) {
+            logger.debug("No connection available within " + cachedConfig.getLeaseTimeout() + " seconds, sending 503");
+        }
+
+        if (client != null) {
+            metrics.recordLeaseWait(System.nanoTime() - start);
+        }
+        if (client != null && cachedConfig.getDebug()) {
+            logger.debug("[" + client.getIndex() + "]: Leased after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms"
+                    + " (avg wait " + String.format("%.2f", clients.getAverageWaitMillis()) + "ms, " + clients.getWaiting() + " waiting, " + clients.getTimeouts() + " timed out)");
+        }
         return client;
     }
+
+    public LeaseScheduler getScheduler() { return clients; }
+
+    public HedgeStats getHedgeStats() { return hedgeStats; }
+
+    public ConnectExecutor getConnectPool() { return connectPool; }
+
+    public AdmissionControl getAdmission() { return admission; }
+
+    public ProxyMetrics getMetrics() { return metrics; }
+
+    public ClientBootstrapper getBootstrapper() { return bootstrapper; }
+
+    public int getStandbyCount() { return standby.size(); }
 }
@@ -1,33 +1,68 @@
 package me.egg82.btorce.core;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.subgraph.orchid.TorClient;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import me.egg82.btorce.http.HttpHeadParser;
+import me.egg82.btorce.http.HttpInput;
+import me.egg82.btorce.metrics.ConnectionTracing;
+import me.egg82.btorce.metrics.Phase;
+import me.egg82.btorce.metrics.PhaseSpan;
+import me.egg82.btorce.metrics.ProxyMetrics;
 import me.egg82.btorce.services.CachedConfigValues;
+import me.egg82.btorce.utils.HttpUtil;
 import ninja.egg82.service.ServiceLocator;
 import ninja.egg82.service.ServiceNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RequestHandler {
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    // Smaller bodies finish in about one round trip, so they say more about latency than throughput
+    private static final long MIN_THROUGHPUT_BYTES = 32L * 1024L;
+    private static final byte[] CONNECT_ESTABLISHED = "HTTP/1.1 200 Connection established\r\nProxy-agent: ProxyServer/1.0\r\n\r\n".getBytes(Charset.forName("ASCII"));
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final Socket socket;
-    private final TorClient client;
-
-    private final ExecutorService threads = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("RequestHandler-%d").build());
-
-    private volatile boolean connected = true;
-
-    public RequestHandler(Socket socket, TorClient client) {
+    private final byte[] head;
+
+    private final ExecutorService threads;
+    private final ConnectExecutor connects;
+    private final Leases leases;
+    private final HedgeStats hedgeStats;
+    private final ProxyMetrics metrics;
+    private final long connection;
+
+    private final HttpHeadParser request = new HttpHeadParser();
+    private final HttpHeadParser response = new HttpHeadParser(true);
+    private final ByteArrayOutputStream headBuffer = new ByteArrayOutputStream(1024);
+
+    private CachedConfigValues cachedConfig;
+    private HttpInput clientInput;
+    private OutputStream clientOutput;
+    private UpstreamConnection upstream = null;
+    private boolean upstreamIdle = false;
+    // Only held while a request is being served, and package-private so the relay benchmark can set one without a lease
+    volatile TorClientWrapper client = null;
+
+    public RequestHandler(Socket socket, byte[] head, ExecutorService relayThreads, ConnectExecutor connects, Leases leases, HedgeStats hedgeStats, ProxyMetrics metrics, long connection) {
         this.socket = socket;
-        this.client = client;
+        this.head = head;
+        this.threads = relayThreads;
+        this.connects = connects;
+        this.leases = leases;
+        this.hedgeStats = hedgeStats;
+        this.metrics = metrics;
+        this.connection = connection;
 
         CachedConfigValues cachedConfig;
         try {
@@ -44,7 +79,6 @@ public class RequestHandler {
 
     // https://github.com/stefano-lupo/Java-Proxy-Server/blob/master/src/RequestHandler.java
     public void start() {
-        CachedConfigValues cachedConfig;
         try {
             cachedConfig = ServiceLocator.get(CachedConfigValues.class);
         } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
@@ -53,284 +87,802 @@ public class RequestHandler {
         }
 
         try {
-            InputStream socketInput = socket.getInputStream();
-            OutputStream socketOutput = socket.getOutputStream();
-
-            ByteArrayOutputStream stringBuffer = new ByteArrayOutputStream();
-            ByteArrayOutputStream trueBuffer = new ByteArrayOutputStream();
-            ByteArrayOutputStream postBuffer = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            outer:
-            while ((bytesRead = socketInput.read(buffer)) > -1) {
-                trueBuffer.write(buffer, 0, bytesRead);
-                for (int i = 0; i < bytesRead; i++) {
-                    if (buffer[i] == '\r') {
-                        stringBuffer.write(buffer, 0, i);
-                        if (bytesRead - i > 0) {
-                            postBuffer.write(buffer, i, bytesRead - i);
-                        }
-                        break outer;
+            // Anything the front end already read off the socket gets replayed ahead of it
+            clientInput = new HttpInput(socket.getInputStream(), head);
+            clientOutput = socket.getOutputStream();
+
+            boolean first = true;
+            while (true) {
+                // No client is leased while waiting on a head, so idle connections can't tie up streams
+                socket.setSoTimeout((first ? cachedConfig.getHeadTimeout() : cachedConfig.getKeepAliveTimeout()) * 1000);
+
+                HttpHeadParser.Result result;
+                PhaseSpan parseSpan = ConnectionTracing.begin(Phase.HEAD_PARSE, connection);
+                try {
+                    result = clientInput.readHead(request);
+                } catch (SocketTimeoutException ignored) {
+                    parseSpan.finish(-1, null, -1, 0L);
+                    break;
+                }
+                if (result == HttpHeadParser.Result.COMPLETE && parseSpan.isEnabled()) {
+                    parseSpan.finish(-1, request.getHost(), request.getPort(), request.getHeadEnd() - request.getHeadStart());
+                } else {
+                    parseSpan.finish(-1, null, -1, 0L);
+                }
+                if (result == null) {
+                    // Client closed between requests
+                    break;
+                }
+                socket.setSoTimeout(0);
+
+                if (result != HttpHeadParser.Result.COMPLETE) {
+                    if (cachedConfig.getDebug()) {
+                        logger.debug("Request header was " + (result == HttpHeadParser.Result.TOO_LARGE ? "too large" : "malformed") + ". Closing.");
+                    }
+                    if (result == HttpHeadParser.Result.TOO_LARGE) {
+                        HttpUtil.reject(socket, 431, "Request Header Fields Too Large");
+                    } else {
+                        HttpUtil.reject(socket, 400, "Bad Request");
                     }
+                    return;
+                }
+                first = false;
+
+                if (cachedConfig.getDebug()) {
+                    logger.debug("Request: " + new String(clientInput.getBuffer(), request.getHeadStart(), request.getRequestLineEnd() - request.getHeadStart(), Charset.forName("ASCII")));
+                }
+
+                // Leased per request, so each one is counted against the client's rotation policy
+                if (!lease()) {
+                    return;
                 }
-                stringBuffer.write(buffer, 0, bytesRead);
+
+                if (request.isConnect()) {
+                    // HTTPS/random connections. After a CONNECT the client connection is just a tunnel
+                    tunnel();
+                    return;
+                }
+
+                // HTTP (or HTTPS if we're being dumb)
+                if (!exchange()) {
+                    break;
+                }
+                releaseClient();
             }
 
-            String request = new String(stringBuffer.toByteArray(), Charset.forName("ASCII"));
             if (cachedConfig.getDebug()) {
-                logger.debug("Request: " + request);
+                logger.debug("Client connection closed");
             }
+        } catch (SocketException ex) {
+            if (!ex.getMessage().equals("Socket closed") && !ex.getMessage().equals("Connection reset") && !ex.getMessage().endsWith("recv failed") && !ex.getMessage().endsWith("socket write error")) {
+                logger.error(ex.getMessage(), ex);
+            }
+        } catch (IOException ex) {
+            if (!ex.getMessage().endsWith("stream closed") && !ex.getMessage().equals("Stream closed")) {
+                logger.error(ex.getMessage(), ex);
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        } finally {
+            PhaseSpan closeSpan = ConnectionTracing.begin(Phase.CLOSE, connection);
+            TorClientWrapper current = client;
+            releaseClient();
+            close(socket);
+            closeSpan.finish(current == null ? -1 : current.getIndex(), null, -1, 0L);
+        }
+    }
 
-            boolean isHttps;
-            boolean sendHeader;
-            String host;
-            int port;
+    /**
+     * Leases a client for the request just read, sending the client a 503 if none is free in time.
+     *
+     * @return false if no client was leased and the client was rejected
+     */
+    private boolean lease() throws InterruptedException {
+        PhaseSpan leaseSpan = ConnectionTracing.begin(Phase.LEASE, connection);
+        client = leases.lease();
+        leaseSpan.finish(client == null ? -1 : client.getIndex(), null, -1, 0L);
+        if (client == null) {
+            metrics.recordRejected();
+            HttpUtil.reject(socket, 503, "Service Unavailable", cachedConfig.getRetryAfter());
+            return false;
+        }
+        return true;
+    }
 
-            if (request.startsWith("CONNECT")) {
-                // HTTPS/random connections
+    private void releaseClient() {
+        // An idle stream goes back to the client's pool before the client does, since rotating it drains the pool
+        releaseUpstream();
+        TorClientWrapper current = client;
+        if (current != null) {
+            client = null;
+            leases.release(current);
+        }
+    }
 
-                sendHeader = false;
-                isHttps = true;
+    private void tunnel() throws IOException, InterruptedException {
+        String host = request.getHost();
+        int port = request.getPort();
 
-                String[] explodedRequest = request.split("\\s+");
-                if (explodedRequest.length < 2) {
-                    if (cachedConfig.getDebug()) {
-                        logger.debug("Request header was not required length. Closing.");
-                        socket.close();
-                        return;
-                    }
-                }
+        Socket tor = connect(host, port, false);
+        if (tor == null) {
+            return;
+        }
 
-                host = explodedRequest[1];
-                if (host.indexOf(':') > -1) {
-                    port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
-                    host = host.substring(0, host.indexOf(':'));
-                } else {
-                    port = 443;
-                }
-            } else {
-                // HTTP (or HTTPS if we're being dumb)
+        if (cachedConfig.getDebug()) {
+            logger.debug("Tunneling to: " + host + " on " + port);
+        }
 
-                sendHeader = true;
+        // CONNECT is an opaque tunnel, so tell the client it's open and get out of the way
+        clientOutput.write(CONNECT_ESTABLISHED);
+        clientOutput.flush();
 
-                String[] explodedRequest = request.split("\\s+");
-                if (explodedRequest.length < 2 || (!explodedRequest[1].startsWith("http://") && !explodedRequest[1].startsWith("https://"))) {
-                    if (cachedConfig.getDebug()) {
-                        logger.debug("Request header was not HTTP or HHTPS. Closing.");
-                        socket.close();
-                        return;
-                    }
-                }
+        // Anything the client sent after the CONNECT head (eg. an eager TLS ClientHello) is still buffered and goes out first
+        relay(tor, tor.getInputStream());
 
-                isHttps = explodedRequest[1].charAt(explodedRequest[1].indexOf(':') - 1) == 's';
+        if (cachedConfig.getDebug()) {
+            logger.debug("Disconnected from: " + host + " on " + port);
+        }
+    }
 
-                host = explodedRequest[1].substring(explodedRequest[1].indexOf(':') + 3);
-                if (host.indexOf('/') > -1) {
-                    host = host.substring(0, host.indexOf('/'));
+    /**
+     * Forwards one request and its response.
+     *
+     * @return true if the client connection can carry another request
+     */
+    private boolean exchange() throws IOException, InterruptedException {
+        String host = request.getHost();
+        int port = request.getPort();
+        boolean secure = request.isSecure();
+
+        boolean http11 = request.isHttp11();
+        boolean keepAlive = http11
+                ? !request.hasToken("Connection", "close") && !request.hasToken("Proxy-Connection", "close")
+                : request.hasToken("Connection", "keep-alive") || request.hasToken("Proxy-Connection", "keep-alive");
+        boolean isHead = request.methodEquals("HEAD");
+        boolean expectContinue = request.hasToken("Expect", "100-continue");
+        boolean upgrade = request.hasToken("Connection", "upgrade") && request.findHeader("Upgrade") != -1;
+
+        boolean chunked = request.isChunked();
+        long contentLength = request.getContentLength();
+        if (contentLength == -2L || (!chunked && request.findHeader("Transfer-Encoding") != -1)) {
+            if (cachedConfig.getDebug()) {
+                logger.debug("Request body framing was invalid. Closing.");
+            }
+            HttpUtil.reject(socket, 400, "Bad Request");
+            return false;
+        }
+        boolean hasBody = chunked || contentLength > 0L;
+
+        // The request head is copied out before the body is read, since reading may reuse the buffer it sits in
+        byte[] requestHead = writeRequestHead(upgrade);
+
+        boolean reused = upstream != null && upstream.matches(host, port, secure);
+        if (!reused) {
+            releaseUpstream();
+            // Earlier requests on this circuit may have left an idle stream to the same remote
+            upstream = client.getUpstreamPool().acquire(host, port, secure);
+            reused = upstream != null;
+            if (reused) {
+                if (cachedConfig.getDebug()) {
+                    logger.debug("Reusing pooled stream to: " + host + " on " + port);
                 }
-
-                if (host.indexOf(':') > -1) {
-                    port = Integer.parseInt(host.substring(host.indexOf(':') + 1));
-                    host = host.substring(0, host.indexOf(':'));
-                } else {
-                    port = isHttps ? 443 : 80;
+            } else if (!openUpstream(host, port, secure)) {
+                return false;
+            }
+        }
+        upstreamIdle = false;
+
+        HttpHeadParser.Result result = null;
+        long sent = 0L;
+        // A kept-alive upstream may have been closed by the remote while idle, so a request gets one retry on a fresh stream
+        // Only idempotent requests without a body (RFC 7231 4.2.2), since the remote may have acted on it before the stream dropped
+        int attempts = reused && !hasBody && isIdempotent() ? 2 : 1;
+        for (int i = 0; i < attempts; i++) {
+            try {
+                upstream.getOutput().write(requestHead);
+                if (!expectContinue) {
+                    recordUpload(copyRequestBody(chunked, contentLength));
                 }
+                upstream.getOutput().flush();
+                sent = System.nanoTime();
+                result = upstream.getInput().readHead(response);
+            } catch (IOException ex) {
+                // Once any of the response has arrived, the remote has certainly seen the request
+                if (i == attempts - 1 || upstream.getInput().getBuffered() > 0) {
+                    throw ex;
+                }
+                result = null;
+            }
+            if (result != null || i == attempts - 1) {
+                break;
             }
 
             if (cachedConfig.getDebug()) {
-                if (cachedConfig.getTimeout() > 0) {
-                    logger.debug("Connecting to: " + host + " on port " + port + " (timeout at " + cachedConfig.getTimeout() + " seconds)");
-                } else {
-                    logger.debug("Connecting to: " + host + " on port " + port);
-                }
+                logger.debug("Kept-alive connection to " + host + " on " + port + " went stale, reconnecting");
+            }
+            closeUpstream();
+            if (!openUpstream(host, port, secure)) {
+                return false;
+            }
+        }
+
+        if (result == HttpHeadParser.Result.COMPLETE) {
+            long firstByte = System.nanoTime() - sent;
+            client.getStats().recordFirstByte(firstByte);
+            metrics.recordFirstByte(firstByte);
+        }
+
+        boolean bodyWithheld = false;
+        if (expectContinue) {
+            if (result == HttpHeadParser.Result.COMPLETE && response.getStatus() == 100) {
+                forwardResponseHead(true, http11);
+                recordUpload(copyRequestBody(chunked, contentLength));
+                upstream.getOutput().flush();
+                result = upstream.getInput().readHead(response);
+            } else {
+                // The remote answered without wanting the body, so there's no telling where the client's next request starts
+                // Nor whether the remote is still waiting on that body, so the stream can't be reused either
+                keepAlive = false;
+                bodyWithheld = hasBody;
             }
+        }
+
+        // Pass along any other interim responses
+        while (result == HttpHeadParser.Result.COMPLETE && response.getStatus() >= 100 && response.getStatus() < 200 && response.getStatus() != 101) {
+            forwardResponseHead(true, http11);
+            result = upstream.getInput().readHead(response);
+        }
 
-            final String threadHost = host;
-            SSLSocket sslTor = null;
-            Socket tor;
+        if (result != HttpHeadParser.Result.COMPLETE) {
+            if (cachedConfig.getDebug()) {
+                logger.debug("Response from " + host + " on " + port + " was " + (result == null ? "empty" : "malformed"));
+            }
+            metrics.recordFailed();
+            HttpUtil.reject(socket, 502, "Bad Gateway");
+            return false;
+        }
+
+        int status = response.getStatus();
+        if (status == 101) {
+            // Protocol switch (eg. WebSocket), from here on it's a raw tunnel
+            clientOutput.write(upstream.getInput().getBuffer(), response.getHeadStart(), response.getHeadEnd() - response.getHeadStart());
+            clientOutput.flush();
+            UpstreamConnection switched = upstream;
+            upstream = null;
+            relay(switched.getSocket(), switched.getInput());
+            return false;
+        }
+
+        boolean noBody = isHead || status == 204 || status == 304;
+        boolean responseChunked = !noBody && response.isChunked();
+        long responseLength = noBody ? 0L : responseChunked ? -1L : response.getContentLength();
+        boolean closeDelimited = !noBody && !responseChunked && (responseLength < 0L || response.findHeader("Transfer-Encoding") != -1);
+        boolean reusable = !closeDelimited && !bodyWithheld && (response.isHttp11()
+                ? !response.hasToken("Connection", "close")
+                : response.hasToken("Connection", "keep-alive"));
+        keepAlive = keepAlive && !closeDelimited;
+
+        forwardResponseHead(keepAlive, http11);
+        PhaseSpan relaySpan = ConnectionTracing.begin(Phase.RELAY, connection);
+        long bodyStart = System.nanoTime();
+        long bodyBytes = responseLength;
+        if (responseChunked) {
+            bodyBytes = upstream.getInput().copyChunked(clientOutput);
+        } else if (closeDelimited) {
+            bodyBytes = upstream.getInput().copyUntilEof(clientOutput);
+        } else if (responseLength > 0L) {
+            upstream.getInput().copy(clientOutput, responseLength);
+        }
+        clientOutput.flush();
+        relaySpan.finish(client.getIndex(), host, port, Math.max(0L, bodyBytes));
+        client.getStats().recordBytes(bodyBytes);
+        metrics.recordBytesDown(bodyBytes);
+        if (bodyBytes >= MIN_THROUGHPUT_BYTES) {
+            client.getStats().recordThroughput(bodyBytes, System.nanoTime() - bodyStart);
+        }
+
+        if (reusable) {
+            upstreamIdle = true;
+        } else {
+            closeUpstream();
+        }
+        return keepAlive;
+    }
+
+    private boolean isIdempotent() {
+        return request.methodEquals("GET") || request.methodEquals("HEAD") || request.methodEquals("OPTIONS") || request.methodEquals("TRACE")
+                || request.methodEquals("PUT") || request.methodEquals("DELETE");
+    }
+
+    private boolean openUpstream(String host, int port, boolean secure) throws IOException, InterruptedException {
+        Socket tor = connect(host, port, secure);
+        if (tor == null) {
+            return false;
+        }
+        upstream = new UpstreamConnection(host, port, secure, tor);
+
+        if (cachedConfig.getDebug()) {
+            logger.debug("Proxying to: " + host + " on " + port);
+        }
+        return true;
+    }
+
+    /**
+     * Opens a Tor stream to the remote, sending the client a 502 or 504 if that fails.
+     *
+     * @return the connected socket, or null if the connection failed and the client was rejected
+     */
+    private Socket connect(String host, int port, boolean secure) throws IOException, InterruptedException {
+        if (cachedConfig.getDebug()) {
+            if (cachedConfig.getTimeout() > 0) {
+                logger.debug("Connecting to: " + host + " on port " + port + " (timeout at " + cachedConfig.getTimeout() + " seconds)");
+            } else {
+                logger.debug("Connecting to: " + host + " on port " + port);
+            }
+        }
+        PhaseSpan connectSpan = ConnectionTracing.begin(Phase.CONNECT, connection);
+
+        // A timeout of 0 never times out
+        boolean bounded = cachedConfig.getTimeout() > 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(cachedConfig.getTimeout());
+        int attempts = 1 + cachedConfig.getConnectRetries();
+
+        Socket tor = null;
+        boolean timedOut = false;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            long start = System.nanoTime();
+            // Split what's left of the budget over the remaining attempts, so one slow circuit can't use all of it
+            long attemptTimeout = (deadline - start) / (attempts - attempt + 1);
+            if (bounded && attemptTimeout <= 0L) {
+                break;
+            }
+
+            TorClientWrapper current = client;
+            timedOut = false;
+            CompletableFuture<Socket> future = open(current, host, port);
             try {
-                tor = CompletableFuture.supplyAsync(() -> {
-                    try {
-                        return client.getSocketFactory().createSocket(threadHost, port);
-                    } catch (IOException ex) {
-                        logger.error(ex.getMessage(), ex);
-                    }
-                    return null;
-                }).get(cachedConfig.getTimeout(), TimeUnit.SECONDS);
-                if (isHttps) {
-                    sslTor = CompletableFuture.supplyAsync(() -> {
-                        try {
-                            if (cachedConfig.getDebug()) {
-                                logger.debug("Creating SSL socket wrapper");
-                            }
-                            SSLSocket retVal = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(client.getSocketFactory().createSocket(threadHost, port), null, port, false);
-                            retVal.setUseClientMode(true);
-                            return retVal;
-                        } catch (IOException ex) {
-                            logger.error(ex.getMessage(), ex);
-                        }
-                        return null;
-                    }).get(cachedConfig.getTimeout(), TimeUnit.SECONDS);
+                if (cachedConfig.getHedge() && (!bounded || attemptTimeout > hedgeStats.getDelayNanos(cachedConfig.getHedgePercentile()))) {
+                    tor = hedge(current, future, host, port, bounded ? attemptTimeout : -1L);
+                } else {
+                    tor = bounded ? future.get(attemptTimeout, TimeUnit.NANOSECONDS) : future.get();
                 }
             } catch (ExecutionException ex) {
                 logger.error(ex.getMessage(), ex);
-                socket.close();
-                return;
             } catch (TimeoutException ignored) {
+                // Interrupts the connect if it's still running, or closes the stream if it opens later
+                future.cancel(true);
+                // Counted at the full timeout, otherwise circuits that never connect would look no worse than ones with no samples
+                current.getStats().recordConnect(System.nanoTime() - start);
+                timedOut = true;
                 if (cachedConfig.getDebug()) {
-                    logger.debug("Connection to " + host + " on " + port + " timed out");
+                    logger.debug("[" + current.getIndex() + "]: Connection to " + host + " on " + port + " timed out (" + connects.getInFlight() + " connects running, " + connects.getPending() + " queued)");
                 }
-                socket.close();
-                return;
             }
-            InputStream torInput = tor.getInputStream();
-            OutputStream torOutput = tor.getOutputStream();
 
+            if (tor != null) {
+                // The winner of a hedge may not be the client this attempt started on
+                long elapsed = System.nanoTime() - start;
+                client.getStats().recordConnect(elapsed);
+                client.getStats().recordSuccess();
+                hedgeStats.recordConnect(elapsed);
+                metrics.recordConnect(elapsed);
+                break;
+            }
+            current.getStats().recordFailure();
+            // Failed and timed-out attempts count too, otherwise the hedging delay would only reflect the circuits that worked
+            long elapsed = System.nanoTime() - start;
+            hedgeStats.recordConnect(bounded ? Math.min(elapsed, attemptTimeout) : elapsed);
+
+            if (attempt == attempts) {
+                break;
+            }
+            long remaining = bounded ? deadline - System.nanoTime() : TimeUnit.SECONDS.toNanos(cachedConfig.getLeaseTimeout());
+            if (remaining <= 0L) {
+                break;
+            }
+
+            // Most connect failures are a bad exit, so try again on another circuit before failing the client
+            TorClientWrapper next = leases.reroute(current, remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            client = next;
             if (cachedConfig.getDebug()) {
-                logger.debug("Proxying to: " + host + " on " + port);
+                logger.debug("Retrying " + host + " on " + port + " through [" + next.getIndex() + "] (attempt " + (attempt + 1) + " of " + attempts + ")");
             }
+        }
 
-            // Replay the request
-            if (sendHeader) {
-                torOutput.write(trueBuffer.toByteArray());
+        connectSpan.finish(client.getIndex(), host, port, 0L);
+        if (tor == null) {
+            metrics.recordFailed();
+            if (timedOut) {
+                HttpUtil.reject(socket, 504, "Gateway Timeout");
             } else {
-                OutputStream sslTorOutput = sslTor.getOutputStream();
-                InputStream sslTorInput = sslTor.getInputStream();
+                HttpUtil.reject(socket, 502, "Bad Gateway");
+            }
+            return null;
+        }
 
-                String getRequest = request.replace("CONNECT", "GET");
-                String[] getExploded = getRequest.split("\\s+");
-                String url = getExploded[1].indexOf('/') > -1 ? getExploded[1].substring(getExploded[1].indexOf('/') + 1) : "";
-                getExploded[1] = "https://" + host + ":" + port + "/" + url;
-                getRequest = String.join(" ", getExploded);
+        if (secure) {
+            // An absolute https:// URI means the client expects us to speak TLS to the remote, over the same stream
+            if (cachedConfig.getDebug()) {
+                logger.debug("Creating SSL socket wrapper");
+            }
+            PhaseSpan tlsSpan = ConnectionTracing.begin(Phase.TLS, connection);
+            SSLSocket sslTor = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(tor, host, port, true);
+            sslTor.setUseClientMode(true);
+            // The exit sees everything, so without checking the certificate matches the host any exit could read and rewrite the request
+            SSLParameters parameters = sslTor.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslTor.setSSLParameters(parameters);
+            try {
+                sslTor.startHandshake();
+            } catch (SSLException ex) {
+                if (cachedConfig.getDebug()) {
+                    logger.debug("TLS handshake with " + host + " on " + port + " failed: " + ex.getMessage());
+                }
+                close(sslTor);
+                metrics.recordFailed();
+                HttpUtil.reject(socket, 502, "Bad Gateway");
+                return null;
+            } finally {
+                tlsSpan.finish(client.getIndex(), host, port, 0L);
+            }
+            tor = sslTor;
+        }
+        return tor;
+    }
+
+    private CompletableFuture<Socket> open(TorClientWrapper client, String host, int port) {
+        return connects.submit(() -> {
+            try {
+                return client.getBackend().connect(host, port);
+            } catch (IOException ex) {
+                if (cachedConfig.getDebug()) {
+                    logger.debug("[" + client.getIndex() + "]: " + ex.getMessage());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Waits the hedging delay for the primary connect, then races a second connect on another free client against it.
+     * The loser's socket is closed when it connects, and the loser's lease is returned.
+     *
+     * @param timeout the time left for this attempt in nanoseconds, or -1 to wait forever
+     * @return the winning socket, or null if both failed
+     */
+    private Socket hedge(TorClientWrapper primary, CompletableFuture<Socket> primaryFuture, String host, int port, long timeout) throws InterruptedException, ExecutionException, TimeoutException {
+        long delay = hedgeStats.getDelayNanos(cachedConfig.getHedgePercentile());
+        try {
+            return primaryFuture.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ignored) {}
+
+        // Only hedge onto a client that's free right now, waiting for one would defeat the point
+        TorClientWrapper backup = leases.tryLease(primary);
+        if (backup == null) {
+            return timeout < 0L ? primaryFuture.get() : primaryFuture.get(timeout - delay, TimeUnit.NANOSECONDS);
+        }
+        hedgeStats.recordHedge();
+        if (cachedConfig.getDebug()) {
+            logger.debug("[" + primary.getIndex() + "]: No connection after " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms, hedging on [" + backup.getIndex() + "]"
+                    + " (hedge rate " + String.format("%.1f", hedgeStats.getHedgeRate() * 100.0d) + "%, win rate " + String.format("%.1f", hedgeStats.getWinRate() * 100.0d) + "%)");
+        }
 
-                ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
-                headerBuffer.write(getRequest.getBytes(Charset.forName("ASCII")));
-                postBuffer.writeTo(headerBuffer);
+        CompletableFuture<Connected> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        race(primary, primaryFuture, winner, pending);
+        CompletableFuture<Socket> backupFuture = open(backup, host, port);
+        race(backup, backupFuture, winner, pending);
 
-                sslTorOutput.write(headerBuffer.toByteArray());
-                sslProxy(sslTor, sslTorInput, socketOutput);
+        Connected connected;
+        try {
+            connected = timeout < 0L ? winner.get() : winner.get(timeout - delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // Anything that connects after this closes itself
+            if (winner.complete(null)) {
+                backupFuture.cancel(true);
+                leases.release(backup);
+                throw ex;
             }
-            torOutput.flush();
+            connected = winner.getNow(null);
+        }
 
-            threads.execute(() -> proxy(socketInput, torOutput));
-            threads.execute(() -> proxy(torInput, socketOutput));
+        if (connected == null) {
+            backup.getStats().recordFailure();
+            leases.release(backup);
+            return null;
+        }
+        // Stop the loser if it's still connecting, rather than leaving it to finish and close
+        if (connected.client == backup) {
+            primaryFuture.cancel(true);
+            hedgeStats.recordWin();
+            leases.release(primary);
+            client = backup;
+        } else {
+            backupFuture.cancel(true);
+            leases.release(backup);
+        }
+        return connected.socket;
+    }
 
-            while (connected) {
-                Thread.sleep(250L);
+    private void race(TorClientWrapper client, CompletableFuture<Socket> future, CompletableFuture<Connected> winner, AtomicInteger pending) {
+        future.whenComplete((tor, ex) -> {
+            if (tor != null) {
+                if (!winner.complete(new Connected(client, tor))) {
+                    close(tor);
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                winner.complete(null);
             }
+        });
+    }
 
-            if (cachedConfig.getDebug()) {
-                logger.debug("Disconnected from: " + host + " on " + port);
+    private void recordUpload(long bytes) {
+        client.getStats().recordBytes(bytes);
+        metrics.recordBytesUp(bytes);
+    }
+
+    private long copyRequestBody(boolean chunked, long contentLength) throws IOException {
+        if (chunked) {
+            return clientInput.copyChunked(upstream.getOutput());
+        } else if (contentLength > 0L) {
+            clientInput.copy(upstream.getOutput(), contentLength);
+            return contentLength;
+        }
+        return 0L;
+    }
+
+    /**
+     * Rewrites the request for the remote: absolute-form becomes origin-form (RFC 7230 5.3.1) and proxy hop-by-hop headers are dropped.
+     */
+    private byte[] writeRequestHead(boolean upgrade) {
+        byte[] buffer = clientInput.getBuffer();
+        headBuffer.reset();
+
+        headBuffer.write(buffer, request.getMethodStart(), request.getMethodEnd() - request.getMethodStart());
+        headBuffer.write(' ');
+        int pathStart = request.getPathStart();
+        int pathEnd = request.getTargetEnd();
+        for (int i = pathStart; i < pathEnd; i++) {
+            if (buffer[i] == '#') {
+                pathEnd = i;
+                break;
+            }
+        }
+        if (pathStart == pathEnd || buffer[pathStart] != '/') {
+            headBuffer.write('/');
+        }
+        headBuffer.write(buffer, pathStart, pathEnd - pathStart);
+        headBuffer.write(' ');
+        headBuffer.write(buffer, request.getVersionStart(), request.getVersionEnd() - request.getVersionStart());
+        headBuffer.write(CRLF, 0, CRLF.length);
+
+        if (request.findHeader("Host") == -1) {
+            writeAscii("Host: ");
+            // The parser strips the brackets off IPv6 literals, and they're needed back to tell the address from the port
+            boolean ipv6 = false;
+            for (int i = request.getHostStart(); i < request.getHostEnd(); i++) {
+                if (buffer[i] == ':') {
+                    ipv6 = true;
+                    break;
+                }
             }
+            if (ipv6) {
+                headBuffer.write('[');
+            }
+            headBuffer.write(buffer, request.getHostStart(), request.getHostEnd() - request.getHostStart());
+            if (ipv6) {
+                headBuffer.write(']');
+            }
+            if (request.getPort() != (request.isSecure() ? 443 : 80)) {
+                writeAscii(":" + request.getPort());
+            }
+            headBuffer.write(CRLF, 0, CRLF.length);
+        }
 
-            tor.close();
-            socket.close();
-        } catch (SocketException ex) {
-            if (!ex.getMessage().equals("Socket closed") && !ex.getMessage().equals("Connection reset") && !ex.getMessage().endsWith("recv failed") && !ex.getMessage().endsWith("socket write error")) {
-                logger.error(ex.getMessage(), ex);
+        boolean chunked = request.isChunked();
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            int nameStart = request.getHeaderNameStart(i);
+            int nameEnd = request.getHeaderNameEnd(i);
+            if (isHopByHop(request, buffer, i, chunked, upgrade) || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Proxy-Authorization")) {
+                continue;
             }
-        } catch (IOException ex) {
-            if (!ex.getMessage().endsWith("stream closed") && !ex.getMessage().equals("Stream closed")) {
-                logger.error(ex.getMessage(), ex);
+            headBuffer.write(buffer, nameStart, request.getHeaderValueEnd(i) - nameStart);
+            headBuffer.write(CRLF, 0, CRLF.length);
+        }
+
+        if (upgrade) {
+            writeAscii("Connection: Upgrade\r\n");
+        } else if (!request.isHttp11()) {
+            writeAscii("Connection: keep-alive\r\n");
+        }
+        headBuffer.write(CRLF, 0, CRLF.length);
+        return headBuffer.toByteArray();
+    }
+
+    private void forwardResponseHead(boolean keepAlive, boolean http11) throws IOException {
+        byte[] buffer = upstream.getInput().getBuffer();
+        headBuffer.reset();
+
+        headBuffer.write(buffer, response.getHeadStart(), response.getRequestLineEnd() - response.getHeadStart());
+        headBuffer.write(CRLF, 0, CRLF.length);
+        boolean chunked = response.isChunked();
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            int nameStart = response.getHeaderNameStart(i);
+            if (isHopByHop(response, buffer, i, chunked, false)) {
+                continue;
             }
+            headBuffer.write(buffer, nameStart, response.getHeaderValueEnd(i) - nameStart);
+            headBuffer.write(CRLF, 0, CRLF.length);
+        }
 
-            try {
-                socket.close();
-            } catch (IOException ignored) {}
-        } catch (InterruptedException ignored) {
-            Thread.currentThread().interrupt();
+        if (!keepAlive) {
+            writeAscii("Connection: close\r\n");
+        } else if (!http11) {
+            writeAscii("Connection: keep-alive\r\n");
         }
+        headBuffer.write(CRLF, 0, CRLF.length);
+        headBuffer.writeTo(clientOutput);
+        clientOutput.flush();
     }
 
-    private void proxy(InputStream from, OutputStream to) {
-        byte[] buffer = new byte[4096];
-        int bytesRead;
+    /**
+     * Hop-by-hop headers only describe the connection they arrived on, so they're never forwarded (RFC 7230 6.1).
+     * Content-Length goes too when the body is chunked, since the chunked framing is what gets relayed and the next hop must not frame it any other way (RFC 7230 3.3.3).
+     *
+     * @param upgrade true to keep the Upgrade header for a protocol switch
+     */
+    private static boolean isHopByHop(HttpHeadParser head, byte[] buffer, int index, boolean chunked, boolean upgrade) {
+        int nameStart = head.getHeaderNameStart(index);
+        int nameEnd = head.getHeaderNameEnd(index);
+        if (HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Upgrade")) {
+            return !upgrade;
+        }
+        if (HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Content-Length")) {
+            return chunked;
+        }
+        // The body is relayed with the framing it arrived with, so a Connection header mustn't be able to strip the headers describing it
+        if (HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Transfer-Encoding") || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Host")) {
+            return false;
+        }
+        return HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Connection")
+                || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Proxy-Connection")
+                || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Keep-Alive")
+                || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "TE")
+                || HttpHeadParser.equalsIgnoreCase(buffer, nameStart, nameEnd, "Trailer")
+                || head.isConnectionOption(index);
+    }
 
-        try {
-            while ((bytesRead = from.read(buffer)) > -1) {
-                to.write(buffer, 0, bytesRead);
-                to.flush();
-            }
-        } catch (SocketException ex) {
-            if (!ex.getMessage().equals("Socket closed") && !ex.getMessage().equals("Connection reset") && !ex.getMessage().endsWith("recv failed") && !ex.getMessage().endsWith("socket write error")) {
-                logger.error("[Socket] " + ex.getMessage(), ex);
-            }
-        } catch (IOException ex) {
-            if (!ex.getMessage().endsWith("stream closed") && !ex.getMessage().equals("Stream closed")) {
-                logger.error("[Socket] " + ex.getMessage(), ex);
-            }
+    private void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            headBuffer.write(value.charAt(i));
         }
+    }
 
-        connected = false;
+    private void relay(Socket tor, InputStream torInput) throws IOException {
+        OutputStream torOutput = tor.getOutputStream();
+
+        // The upstream side is pumped on the shared relay pool while this thread pumps the client side
+        // Whichever direction finishes last closes both sockets
+        AtomicInteger remaining = new AtomicInteger(2);
+        PhaseSpan relaySpan = ConnectionTracing.begin(Phase.RELAY, connection);
+        CompletableFuture<Long> download = CompletableFuture.supplyAsync(() -> proxy(torInput, clientOutput, tor, socket, remaining, false), threads);
+        long uploaded = proxy(clientInput, torOutput, socket, tor, remaining, true);
+        long downloaded = download.join();
+        if (relaySpan.isEnabled()) {
+            relaySpan.finish(client.getIndex(), request.getHost(), request.getPort(), uploaded + downloaded);
+        }
     }
 
-    private void sslProxy(SSLSocket sslTor, InputStream from, OutputStream to) {
-        CachedConfigValues cachedConfig;
-        try {
-            cachedConfig = ServiceLocator.get(CachedConfigValues.class);
-        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
-            logger.error(ex.getMessage(), ex);
+    private void releaseUpstream() {
+        // Only streams sitting between responses can be handed to another request
+        if (upstream != null && upstreamIdle && client != null && client.getUpstreamPool().release(upstream)) {
+            upstream = null;
+            upstreamIdle = false;
             return;
         }
+        closeUpstream();
+    }
 
-        ByteArrayOutputStream stringBuffer = new ByteArrayOutputStream();
+    private void closeUpstream() {
+        if (upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+        upstreamIdle = false;
+    }
 
+    // Package-private so the relay benchmark can drive it without a real request
+    long proxy(InputStream from, OutputStream to, Socket source, Socket destination, AtomicInteger remaining, boolean upload) {
         byte[] buffer = new byte[4096];
         int bytesRead;
+        long total = 0L;
+        boolean finished = false;
 
         try {
             while ((bytesRead = from.read(buffer)) > -1) {
-                boolean done = false;
-
-                for (int i = 0; i < bytesRead; i++) {
-                    if (buffer[i] == '\n') {
-                        //to.write(buffer, 0, i);
-                        //to.flush();
-
-                        stringBuffer.write(buffer, 0, i + 1);
-                        done = true;
-                        break;
-                    }
-                }
-                if (done) {
-                    String line = new String(stringBuffer.toByteArray(), Charset.forName("ASCII"));
-                    if (cachedConfig.getDebug()) {
-                        logger.debug("[SSL] " + line.substring(0, line.length() - 2));
-                    }
-                    break;
-                } else {
-                    //to.write(buffer, 0, bytesRead);
-                    //to.flush();
-                    stringBuffer.write(buffer, 0, bytesRead);
-                }
-            }
-
-            String header = new String(stringBuffer.toByteArray(), Charset.forName("ASCII"));
-            String[] exploded = header.split("\\s+");
-            if (exploded.length >= 1) {
-                header = exploded[0] + " 200 OK\r\n";
-                if (cachedConfig.getDebug()) {
-                    logger.debug("[SSL] Forwarding new header: " + header.substring(0, header.length() - 2));
-                }
+                to.write(buffer, 0, bytesRead);
+                to.flush();
+                total += bytesRead;
             }
-            to.write(header.getBytes(Charset.forName("ASCII")));
-
-            to.write("Proxy-agent: ProxyServer/1.0\r\n\r\n".getBytes(Charset.forName("ASCII")));
-            to.flush();
+            finished = true;
         } catch (SocketException ex) {
             if (!ex.getMessage().equals("Socket closed") && !ex.getMessage().equals("Connection reset") && !ex.getMessage().endsWith("recv failed") && !ex.getMessage().endsWith("socket write error")) {
-                logger.error("[SSL] " + ex.getMessage(), ex);
+                logger.error("[Socket] " + ex.getMessage(), ex);
             }
         } catch (IOException ex) {
             if (!ex.getMessage().endsWith("stream closed") && !ex.getMessage().equals("Stream closed")) {
-                logger.error("[SSL] " + ex.getMessage(), ex);
+                logger.error("[Socket] " + ex.getMessage(), ex);
             }
         }
 
-        logger.debug("[SSL] Connection closed");
+        if (finished) {
+            // Pass the FIN along and let the other direction keep going
+            try {
+                destination.shutdownOutput();
+            } catch (IOException | UnsupportedOperationException ignored) {
+                finished = false;
+            }
+        }
+        client.getStats().recordBytes(total);
+        if (upload) {
+            metrics.recordBytesUp(total);
+        } else {
+            metrics.recordBytesDown(total);
+        }
+        boolean last = remaining.decrementAndGet() == 0;
+        if (!finished || last) {
+            // Errors tear down both directions, otherwise the other pump could block forever
+            close(source);
+            close(destination);
+        }
+        return total;
+    }
 
+    private void close(Socket socket) {
         try {
-            sslTor.close();
+            socket.close();
         } catch (IOException ignored) {}
     }
+
+    private static class Connected {
+        private final TorClientWrapper client;
+        private final Socket socket;
+
+        private Connected(TorClientWrapper client, Socket socket) {
+            this.client = client;
+            this.socket = socket;
+        }
+    }
+
+    public interface Leases {
+        /**
+         * Leases a client for the next request, waiting up to the lease timeout.
+         *
+         * @return the client, or null if none was free in time
+         */
+        TorClientWrapper lease() throws InterruptedException;
+
+        /**
+         * Called when a stream couldn't be opened on the failed client.
+         * If another client is leased within the timeout, the failed client's lease is returned and the new one is handed back.
+         *
+         * @return the new client, or null if none was available, in which case the handler keeps the failed client's lease
+         */
+        TorClientWrapper reroute(TorClientWrapper failed, long timeout, TimeUnit unit) throws InterruptedException;
+
+        /**
+         * Leases an extra client on top of the one the handler already holds, without waiting for one.
+         *
+         * @return the client, or null if none other than the excluded one was free
+         */
+        TorClientWrapper tryLease(TorClientWrapper exclude);
+
+        /**
+         * Returns a lease the handler is done with.
+         */
+        void release(TorClientWrapper client);
+    }
 }
@@ -0,0 +1,236 @@
+package me.egg82.btorce.core;
+
+import com.subgraph.orchid.DirectoryStore;
+import com.subgraph.orchid.Document;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One in-memory copy of the directory cache files (consensus, certificates, descriptors) shared by every Tor client in the process, in place of a cache-N directory per client.
+ * Each client gets its own view through {@link #newView()}, which reads the current snapshot without copying it and keeps its own guard state.
+ * Writes from any client build a new snapshot and publish it atomically, so readers never see a half-written file.
+ * Every client downloads and journals the same descriptors, so journal appends are written once, skipping documents already journaled or cached by another client.
+ * This only shares the raw files. Orchid still parses them into a Directory per client and has no way to share that, so heap still grows with the number of Orchid clients.
+ */
+public class SharedDirectoryStore {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AtomicReference<Map<DirectoryStore.CacheFile, ByteBuffer>> snapshot = new AtomicReference<>(Collections.emptyMap());
+    // Digests of the documents in each journal and its cache, keyed by journal
+    private final Map<DirectoryStore.CacheFile, Set<ByteBuffer>> written = new EnumMap<>(DirectoryStore.CacheFile.class);
+
+    public SharedDirectoryStore() {}
+
+    /**
+     * Replaces the snapshot with the cache files in the directory. The state file is skipped, since guard state belongs to each client.
+     */
+    public void load(File directory) throws IOException {
+        Map<DirectoryStore.CacheFile, ByteBuffer> files = new EnumMap<>(DirectoryStore.CacheFile.class);
+        for (DirectoryStore.CacheFile file : DirectoryStore.CacheFile.values()) {
+            if (file == DirectoryStore.CacheFile.STATE) {
+                continue;
+            }
+
+            File cacheFile = new File(directory, file.getFilename());
+            if (cacheFile.isFile()) {
+                files.put(file, ByteBuffer.wrap(Files.readAllBytes(cacheFile.toPath())).asReadOnlyBuffer());
+            }
+        }
+        synchronized (written) {
+            // Documents loaded from disk aren't split back out, so at worst the first append after a load repeats some of them
+            written.clear();
+            snapshot.set(Collections.unmodifiableMap(files));
+        }
+    }
+
+    public DirectoryStore newView() { return new View(); }
+
+    /**
+     * @return the total number of bytes held by the current snapshot
+     */
+    public long getSize() {
+        long retVal = 0L;
+        for (ByteBuffer buffer : snapshot.get().values()) {
+            retVal += buffer.capacity();
+        }
+        return retVal;
+    }
+
+    private ByteBuffer get(DirectoryStore.CacheFile file) {
+        ByteBuffer buffer = snapshot.get().get(file);
+        // Every reader gets its own position and limit over the same bytes
+        return buffer == null ? EMPTY_BUFFER.duplicate() : buffer.duplicate();
+    }
+
+    private void update(DirectoryStore.CacheFile file, UnaryOperator<ByteBuffer> function) {
+        Map<DirectoryStore.CacheFile, ByteBuffer> current;
+        Map<DirectoryStore.CacheFile, ByteBuffer> next;
+        do {
+            current = snapshot.get();
+            next = new EnumMap<>(DirectoryStore.CacheFile.class);
+            next.putAll(current);
+
+            ByteBuffer value = function.apply(current.get(file));
+            if (value == null) {
+                next.remove(file);
+            } else {
+                next.put(file, value.asReadOnlyBuffer());
+            }
+        } while (!snapshot.compareAndSet(current, Collections.unmodifiableMap(next)));
+    }
+
+    private void write(DirectoryStore.CacheFile file, ByteBuffer value, List<? extends Document> documents) {
+        DirectoryStore.CacheFile journal = getJournal(file);
+        if (journal == null) {
+            update(file, v -> value);
+            return;
+        }
+
+        synchronized (written) {
+            Set<ByteBuffer> digests = written.computeIfAbsent(journal, k -> new HashSet<>());
+            if (file == journal) {
+                // The journal is rewritten or cleared once its documents are compacted into the cache, which keeps them
+                update(file, v -> value);
+                return;
+            }
+            digests.clear();
+            for (Document document : documents) {
+                digests.add(digest(document));
+            }
+            update(file, v -> value);
+        }
+    }
+
+    private void append(DirectoryStore.CacheFile file, List<? extends Document> documents) {
+        if (getJournal(file) != file) {
+            update(file, v -> concat(v, documents));
+            return;
+        }
+
+        synchronized (written) {
+            Set<ByteBuffer> digests = written.computeIfAbsent(file, k -> new HashSet<>());
+            List<Document> fresh = new ArrayList<>(documents.size());
+            for (Document document : documents) {
+                if (digests.add(digest(document))) {
+                    fresh.add(document);
+                }
+            }
+            if (!fresh.isEmpty()) {
+                update(file, v -> concat(v, fresh));
+            }
+        }
+    }
+
+    private static DirectoryStore.CacheFile getJournal(DirectoryStore.CacheFile file) {
+        switch (file) {
+            case DESCRIPTOR_CACHE:
+            case DESCRIPTOR_JOURNAL:
+                return DirectoryStore.CacheFile.DESCRIPTOR_JOURNAL;
+            case MICRODESCRIPTOR_CACHE:
+            case MICRODESCRIPTOR_JOURNAL:
+                return DirectoryStore.CacheFile.MICRODESCRIPTOR_JOURNAL;
+            default:
+                return null;
+        }
+    }
+
+    private static ByteBuffer digest(Document document) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(document.getRawDocumentBytes().duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static ByteBuffer concat(ByteBuffer head, List<? extends Document> documents) {
+        int length = head == null ? 0 : head.remaining();
+        for (Document document : documents) {
+            length += document.getRawDocumentBytes().remaining();
+        }
+
+        ByteBuffer retVal = ByteBuffer.allocate(length);
+        if (head != null) {
+            retVal.put(head.duplicate());
+        }
+        for (Document document : documents) {
+            retVal.put(document.getRawDocumentBytes().duplicate());
+        }
+        retVal.flip();
+        return retVal;
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        ByteBuffer retVal = ByteBuffer.allocate(data.remaining());
+        retVal.put(data.duplicate());
+        retVal.flip();
+        return retVal;
+    }
+
+    private class View implements DirectoryStore {
+        private ByteBuffer state = null;
+
+        private View() {}
+
+        public synchronized ByteBuffer loadCacheFile(CacheFile cacheFile) {
+            if (cacheFile == CacheFile.STATE) {
+                return state == null ? EMPTY_BUFFER.duplicate() : state.duplicate();
+            }
+            return get(cacheFile);
+        }
+
+        public synchronized void writeData(CacheFile cacheFile, ByteBuffer data) {
+            ByteBuffer value = copy(data);
+            if (cacheFile == CacheFile.STATE) {
+                state = value;
+                return;
+            }
+            write(cacheFile, value, Collections.emptyList());
+        }
+
+        public void writeDocument(CacheFile cacheFile, Document document) { writeDocumentList(cacheFile, Collections.singletonList(document)); }
+
+        public synchronized void writeDocumentList(CacheFile cacheFile, List<? extends Document> documents) {
+            ByteBuffer value = concat(null, documents);
+            if (cacheFile == CacheFile.STATE) {
+                state = value;
+                return;
+            }
+            write(cacheFile, value, documents);
+        }
+
+        public synchronized void appendDocumentList(CacheFile cacheFile, List<? extends Document> documents) {
+            if (cacheFile == CacheFile.STATE) {
+                state = concat(state, documents);
+                return;
+            }
+            append(cacheFile, documents);
+        }
+
+        public synchronized void removeCacheFile(CacheFile cacheFile) {
+            if (cacheFile == CacheFile.STATE) {
+                state = null;
+                return;
+            }
+            write(cacheFile, null, Collections.emptyList());
+        }
+
+        public synchronized void removeAllCacheFiles() {
+            // Other clients are still reading the shared files, so only this client's own state goes
+            logger.warn("Tor client asked to remove all cache files, only removing its state.");
+            state = null;
+        }
+    }
+}
@@ -1,23 +1,27 @@
 package me.egg82.btorce.core;
 
-import com.subgraph.orchid.TorClient;
-import java.io.File;
-import me.egg82.btorce.utils.TorUtil;
+import me.egg82.btorce.backend.CircuitBackend;
 
 public class TorClientWrapper {
     private final int index;
     private final int port;
-    private final TorClient client;
+    private final CircuitBackend backend;
+    private final UpstreamPool upstreamPool = new UpstreamPool();
+    private final CircuitStats stats = new CircuitStats();
 
-    public TorClientWrapper(int index, int port, File currentDirectory) {
+    public TorClientWrapper(int index, int port, CircuitBackend backend) {
         this.index = index;
         this.port = port;
-        this.client = TorUtil.getClient(index, port, currentDirectory);
+        this.backend = backend;
     }
 
     public int getIndex() { return index; }
 
     public int getPort() { return port; }
 
-    public TorClient getClient() { return client; }
+    public CircuitBackend getBackend() { return backend; }
+
+    public UpstreamPool getUpstreamPool() { return upstreamPool; }
+
+    public CircuitStats getStats() { return stats; }
 }
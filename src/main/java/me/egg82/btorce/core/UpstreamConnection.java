@@ -0,0 +1,62 @@
+package me.egg82.btorce.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import me.egg82.btorce.http.HttpInput;
+
+public class UpstreamConnection {
+    private final String host;
+    private final int port;
+    private final boolean secure;
+
+    private final Socket socket;
+    private final HttpInput input;
+    private final OutputStream output;
+
+    private volatile long idleSince = 0L;
+
+    public UpstreamConnection(String host, int port, boolean secure, Socket socket) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.socket = socket;
+        this.input = new HttpInput(socket.getInputStream());
+        this.output = socket.getOutputStream();
+    }
+
+    public boolean matches(String host, int port, boolean secure) { return this.port == port && this.secure == secure && this.host.equalsIgnoreCase(host); }
+
+    public String getHost() { return host; }
+
+    public int getPort() { return port; }
+
+    public boolean isSecure() { return secure; }
+
+    public Socket getSocket() { return socket; }
+
+    public HttpInput getInput() { return input; }
+
+    public OutputStream getOutput() { return output; }
+
+    /**
+     * @return true if the remote has sent anything that hasn't been read yet, which a stream between messages never should
+     */
+    public boolean hasPendingInput() {
+        try {
+            return input.available() > 0;
+        } catch (IOException ignored) {
+            return true;
+        }
+    }
+
+    public long getIdleSince() { return idleSince; }
+
+    public void setIdleSince(long idleSince) { this.idleSince = idleSince; }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,211 @@
+package me.egg82.btorce.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.services.CachedConfigValues;
+import ninja.egg82.service.ServiceLocator;
+import ninja.egg82.service.ServiceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Idle keep-alive streams to plain HTTP remotes, kept per Tor client so they all ride that client's circuit.
+ * Expired streams are closed when their remote is next used, and by a shared reaper for remotes that never are.
+ */
+public class UpstreamPool {
+    private static final Logger reaperLogger = LoggerFactory.getLogger(UpstreamPool.class);
+    // Weakly held, so a pool that's been thrown away doesn't stay alive just to be reaped
+    private static final Set<UpstreamPool> pools = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("UpstreamReaper-%d").setDaemon(true).build());
+
+    static {
+        reaper.scheduleWithFixedDelay(() -> {
+            // An exception escaping here would cancel every future pass
+            try {
+                List<UpstreamPool> snapshot;
+                synchronized (pools) {
+                    snapshot = new ArrayList<>(pools);
+                }
+                for (UpstreamPool pool : snapshot) {
+                    pool.evictExpired();
+                }
+            } catch (RuntimeException ex) {
+                reaperLogger.error(ex.getMessage(), ex);
+            }
+        }, 1L, 1L, TimeUnit.SECONDS);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Deque<UpstreamConnection>> idle = new HashMap<>();
+
+    private final int maxPerHost;
+    private final long idleNanos;
+
+    private boolean closed = false;
+    private long hits = 0L;
+    private long misses = 0L;
+
+    public UpstreamPool() {
+        CachedConfigValues cachedConfig;
+        try {
+            cachedConfig = ServiceLocator.get(CachedConfigValues.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            this.maxPerHost = 0;
+            this.idleNanos = 0L;
+            return;
+        }
+
+        this.maxPerHost = cachedConfig.getUpstreamPoolSize();
+        this.idleNanos = TimeUnit.SECONDS.toNanos(cachedConfig.getUpstreamIdleTimeout());
+        if (maxPerHost > 0) {
+            pools.add(this);
+        }
+    }
+
+    /**
+     * Takes the most recently used idle stream to the remote, if there is one that hasn't expired.
+     *
+     * @return the idle connection, or null if a new stream needs to be built
+     */
+    public UpstreamConnection acquire(String host, int port, boolean secure) {
+        List<UpstreamConnection> expired = new ArrayList<>();
+        UpstreamConnection retVal = null;
+
+        synchronized (this) {
+            Deque<UpstreamConnection> connections = closed ? null : idle.get(key(host, port, secure));
+            if (connections != null) {
+                evict(connections, System.nanoTime(), expired);
+                // Anything the remote sent while the stream sat idle would be read as the next response
+                while ((retVal = connections.pollFirst()) != null && retVal.hasPendingInput()) {
+                    expired.add(retVal);
+                }
+                if (connections.isEmpty()) {
+                    idle.remove(key(host, port, secure));
+                }
+            }
+
+            if (retVal != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        // Closing a Tor stream sends a cell, so keep it out of the lock
+        for (UpstreamConnection connection : expired) {
+            connection.close();
+        }
+        return retVal;
+    }
+
+    /**
+     * Returns an idle stream to the pool. The connection must be between messages.
+     * Streams with unread bytes are refused, since whoever acquires them next would read those as their response.
+     *
+     * @return true if the pool kept the connection, false if the caller should close it
+     */
+    public boolean release(UpstreamConnection connection) {
+        if (maxPerHost <= 0 || connection.getSocket().isClosed() || connection.hasPendingInput()) {
+            return false;
+        }
+
+        List<UpstreamConnection> expired = new ArrayList<>();
+        boolean retVal;
+
+        synchronized (this) {
+            if (closed) {
+                retVal = false;
+            } else {
+                long now = System.nanoTime();
+                Deque<UpstreamConnection> connections = idle.computeIfAbsent(key(connection.getHost(), connection.getPort(), connection.isSecure()), k -> new ArrayDeque<>());
+                evict(connections, now, expired);
+                if (connections.size() >= maxPerHost) {
+                    // Keep the freshest streams, the oldest are the likeliest to have been dropped by the remote
+                    expired.add(connections.pollLast());
+                }
+                connection.setIdleSince(now);
+                connections.addFirst(connection);
+                retVal = true;
+            }
+        }
+
+        for (UpstreamConnection c : expired) {
+            c.close();
+        }
+        return retVal;
+    }
+
+    /**
+     * Closes every idle stream and stops accepting new ones. Used when the circuit behind them is rotated out.
+     */
+    public void drain() {
+        List<UpstreamConnection> connections = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<UpstreamConnection> deque : idle.values()) {
+                connections.addAll(deque);
+            }
+            idle.clear();
+        }
+
+        for (UpstreamConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes idle streams that have expired, across every remote.
+     *
+     * @return the number of streams closed
+     */
+    public int evictExpired() {
+        List<UpstreamConnection> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Iterator<Deque<UpstreamConnection>> i = idle.values().iterator(); i.hasNext();) {
+                Deque<UpstreamConnection> connections = i.next();
+                evict(connections, now, expired);
+                if (connections.isEmpty()) {
+                    i.remove();
+                }
+            }
+        }
+
+        for (UpstreamConnection connection : expired) {
+            connection.close();
+        }
+        return expired.size();
+    }
+
+    /**
+     * Starts pooling again after a drain, once the client is on a new circuit.
+     */
+    public synchronized void reopen() { closed = false; }
+
+    public synchronized int getIdle() {
+        int retVal = 0;
+        for (Deque<UpstreamConnection> deque : idle.values()) {
+            retVal += deque.size();
+        }
+        return retVal;
+    }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    private void evict(Deque<UpstreamConnection> connections, long now, List<UpstreamConnection> expired) {
+        // Newest are at the front, so expired streams collect at the back
+        UpstreamConnection last;
+        while ((last = connections.peekLast()) != null && (now - last.getIdleSince() >= idleNanos || last.getSocket().isClosed())) {
+            expired.add(connections.pollLast());
+        }
+    }
+
+    private static String key(String host, int port, boolean secure) { return (secure ? "https://" : "http://") + host.toLowerCase(Locale.ROOT) + ":" + port; }
+}
@@ -0,0 +1,225 @@
+package me.egg82.btorce.core.nio;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import me.egg82.btorce.http.HttpHeadParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class EventLoop implements Runnable {
+    private static final int INITIAL_HEAD_SIZE = 4096;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Consumer<SocketChannel> acceptHandler;
+    private final NioFrontEnd.ConnectionHandler connectionHandler;
+    private final long headTimeout;
+
+    private volatile boolean running = true;
+
+    public EventLoop(Consumer<SocketChannel> acceptHandler, NioFrontEnd.ConnectionHandler connectionHandler, long headTimeout, TimeUnit unit) throws IOException {
+        this.selector = Selector.open();
+        this.acceptHandler = acceptHandler;
+        this.connectionHandler = connectionHandler;
+        this.headTimeout = unit.toNanos(headTimeout);
+    }
+
+    public void listen(ServerSocketChannel server) throws IOException {
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    public int getConnections() { return selector.keys().size(); }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        List<SelectionKey> ready = new ArrayList<>();
+        long lastExpiry = System.nanoTime();
+
+        while (running) {
+            try {
+                selector.select(1000L);
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+                continue;
+            }
+
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new HeadBuffer(System.nanoTime()));
+                } catch (IOException ex) {
+                    logger.error(ex.getMessage(), ex);
+                    close(channel);
+                }
+            }
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                } else if (key.isReadable() && read(key)) {
+                    key.cancel();
+                    ready.add(key);
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - lastExpiry >= TimeUnit.SECONDS.toNanos(1L)) {
+                lastExpiry = now;
+                expire(now);
+            }
+
+            if (!ready.isEmpty()) {
+                dispatch(ready);
+                ready.clear();
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            close(key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                acceptHandler.accept(channel);
+            }
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+    private boolean read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        HeadBuffer head = (HeadBuffer) key.attachment();
+
+        try {
+            int bytesRead = channel.read(head.buffer);
+            if (bytesRead == -1) {
+                key.cancel();
+                close(channel);
+                return false;
+            }
+        } catch (IOException ignored) {
+            key.cancel();
+            close(channel);
+            return false;
+        }
+
+        // Malformed and oversized heads are handed off too, so the handler can answer them with a 400 or 431
+        if (head.isParsed()) {
+            return true;
+        }
+
+        if (!head.buffer.hasRemaining()) {
+            head.grow();
+        }
+        return false;
+    }
+
+    private void dispatch(List<SelectionKey> ready) {
+        // Cancelled keys are only deregistered on the next select, and a channel can't go back to blocking mode until then
+        try {
+            selector.selectNow();
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+
+        for (SelectionKey key : ready) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            HeadBuffer head = (HeadBuffer) key.attachment();
+
+            Socket socket;
+            try {
+                channel.configureBlocking(true);
+                socket = channel.socket();
+            } catch (IOException ex) {
+                logger.error(ex.getMessage(), ex);
+                close(channel);
+                continue;
+            }
+
+            byte[] bytes = new byte[head.buffer.position()];
+            head.buffer.flip();
+            head.buffer.get(bytes);
+            connectionHandler.handle(socket, bytes);
+        }
+    }
+
+    private void expire(long now) {
+        // A timeout of 0 waits forever, like everywhere else it's configured
+        if (headTimeout <= 0L) {
+            return;
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof HeadBuffer)) {
+                continue;
+            }
+            if (now - ((HeadBuffer) key.attachment()).accepted > headTimeout) {
+                key.cancel();
+                close(key.channel());
+            }
+        }
+    }
+
+    private void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static class HeadBuffer {
+        private final long accepted;
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_HEAD_SIZE);
+        // The same parser the handler uses, so bare-LF line endings and leading CRLFs end the head in the same place
+        private final HttpHeadParser parser = new HttpHeadParser();
+
+        private HeadBuffer(long accepted) {
+            this.accepted = accepted;
+        }
+
+        private boolean isParsed() { return parser.parse(buffer.array(), 0, buffer.position()) != HttpHeadParser.Result.INCOMPLETE; }
+
+        private void grow() {
+            // The parser gives up with TOO_LARGE at its limit, so the buffer never has to grow past it
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, HttpHeadParser.MAX_HEAD_SIZE));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package me.egg82.btorce.core.nio;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections and reads their request heads on a fixed set of selector threads.
+ * A connection only costs a thread once its head has fully arrived and it's handed off.
+ */
+public class NioFrontEnd {
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    private final ExecutorService loopThreads;
+
+    /**
+     * @param headTimeout how long a connection may take to send its request head before it's closed, or 0 to wait forever
+     */
+    public NioFrontEnd(int port, int numLoops, long headTimeout, TimeUnit unit, ConnectionHandler handler) throws IOException {
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("numLoops cannot be < 1");
+        }
+
+        this.loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop(channel -> loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel), handler, headTimeout, unit);
+        }
+
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        loops[0].listen(server);
+
+        this.loopThreads = Executors.newFixedThreadPool(numLoops, new ThreadFactoryBuilder().setNameFormat("EventLoop-%d").build());
+        for (EventLoop loop : loops) {
+            loopThreads.execute(loop);
+        }
+    }
+
+    public int getConnections() {
+        int retVal = 0;
+        for (EventLoop loop : loops) {
+            retVal += loop.getConnections();
+        }
+        return retVal;
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        loopThreads.shutdown();
+
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+    }
+
+    public interface ConnectionHandler {
+        /**
+         * Called on the event loop thread once a full request head has arrived.
+         * The socket has been switched back to blocking mode, and head holds every byte read from it so far.
+         */
+        void handle(Socket socket, byte[] head);
+    }
+}
@@ -0,0 +1,558 @@
+package me.egg82.btorce.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x request or response head parser.
+ * Works directly on the caller's byte buffer and only records offsets into it, so parsing a head allocates nothing.
+ * Feed it the same buffer again as more bytes arrive, it picks up where it stopped.
+ */
+public class HttpHeadParser {
+    public static final int MAX_HEAD_SIZE = 65536;
+    public static final int MAX_HEADERS = 128;
+
+    public enum Result {
+        INCOMPLETE,
+        COMPLETE,
+        MALFORMED,
+        TOO_LARGE
+    }
+
+    private final boolean response;
+
+    private byte[] buffer = null;
+    private int start = 0;
+    private int offset = 0;
+    private int pos = 0;
+    private int lineStart = 0;
+    private Result result = Result.INCOMPLETE;
+
+    private int methodStart = -1, methodEnd = -1;
+    private int targetStart = -1, targetEnd = -1;
+    private int versionStart = -1, versionEnd = -1;
+    private int requestLineEnd = -1;
+    private int status = -1;
+
+    private int headerCount = 0;
+    private final int[] headers = new int[MAX_HEADERS * 4];
+
+    private int hostStart = -1, hostEnd = -1;
+    private int port = -1;
+    private int pathStart = -1;
+    private boolean connect = false;
+    private boolean secure = false;
+
+    private int headEnd = -1;
+
+    public HttpHeadParser() { this(false); }
+
+    public HttpHeadParser(boolean response) {
+        this.response = response;
+    }
+
+    public void reset() {
+        buffer = null;
+        start = 0;
+        offset = 0;
+        pos = 0;
+        lineStart = 0;
+        result = Result.INCOMPLETE;
+        methodStart = methodEnd = targetStart = targetEnd = versionStart = versionEnd = requestLineEnd = status = -1;
+        headerCount = 0;
+        hostStart = hostEnd = port = pathStart = -1;
+        connect = false;
+        secure = false;
+        headEnd = -1;
+    }
+
+    /**
+     * Parses as much of the head as is available.
+     * Between calls the head must stay at the same offset in the buffer, though the buffer itself may be replaced by a larger copy.
+     *
+     * @param buffer the buffer holding the head
+     * @param offset where the head starts in the buffer
+     * @param length the number of bytes available from offset
+     */
+    public Result parse(byte[] buffer, int offset, int length) {
+        if (result != Result.INCOMPLETE) {
+            return result;
+        }
+
+        if (this.buffer == null) {
+            this.start = offset;
+            this.offset = offset;
+            this.pos = offset;
+            this.lineStart = offset;
+        }
+        this.buffer = buffer;
+
+        int end = offset + length;
+        for (; pos < end; pos++) {
+            if (buffer[pos] != '\n') {
+                continue;
+            }
+
+            int lineEnd = pos > lineStart && buffer[pos - 1] == '\r' ? pos - 1 : pos;
+            if (requestLineEnd == -1) {
+                if (lineEnd == lineStart && lineStart == this.offset) {
+                    // Tolerate stray CRLFs ahead of the start line (RFC 7230 3.5)
+                    lineStart = pos + 1;
+                    this.offset = lineStart;
+                    continue;
+                }
+                if (!(response ? parseStatusLine(lineStart, lineEnd) : parseRequestLine(lineStart, lineEnd))) {
+                    return result = Result.MALFORMED;
+                }
+            } else if (lineEnd == lineStart) {
+                headEnd = pos + 1;
+                pos++;
+                return result = response || parseTarget() ? Result.COMPLETE : Result.MALFORMED;
+            } else if (!parseHeader(lineStart, lineEnd)) {
+                return result = Result.MALFORMED;
+            }
+            lineStart = pos + 1;
+        }
+
+        // Counted from where parsing started, so leading CRLFs can't push the limit past the end of a full buffer
+        if (end - start >= MAX_HEAD_SIZE) {
+            return result = Result.TOO_LARGE;
+        }
+        return Result.INCOMPLETE;
+    }
+
+    public Result getResult() { return result; }
+
+    public int getHeadStart() { return offset; }
+
+    public int getHeadEnd() { return headEnd; }
+
+    /**
+     * @return where the request or status line ends, not counting its CRLF
+     */
+    public int getRequestLineEnd() { return requestLineEnd; }
+
+    public int getStatus() { return status; }
+
+    public int getMethodStart() { return methodStart; }
+
+    public int getMethodEnd() { return methodEnd; }
+
+    public int getTargetStart() { return targetStart; }
+
+    public int getTargetEnd() { return targetEnd; }
+
+    public int getVersionStart() { return versionStart; }
+
+    public int getVersionEnd() { return versionEnd; }
+
+    public int getHeaderCount() { return headerCount; }
+
+    public int getHeaderNameStart(int index) { return headers[index * 4]; }
+
+    public int getHeaderNameEnd(int index) { return headers[index * 4 + 1]; }
+
+    public int getHeaderValueStart(int index) { return headers[index * 4 + 2]; }
+
+    public int getHeaderValueEnd(int index) { return headers[index * 4 + 3]; }
+
+    public int getHostStart() { return hostStart; }
+
+    public int getHostEnd() { return hostEnd; }
+
+    public int getPort() { return port; }
+
+    /**
+     * @return where the origin-form path starts in an absolute-form target, equal to the target end if it has no path, or -1 for CONNECT
+     */
+    public int getPathStart() { return pathStart; }
+
+    public boolean isConnect() { return connect; }
+
+    public boolean isSecure() { return secure; }
+
+    public String getHost() { return new String(buffer, hostStart, hostEnd - hostStart, StandardCharsets.ISO_8859_1); }
+
+    /**
+     * @return the index of the first header with the given (case-insensitive, ASCII) name, or -1 if it isn't present
+     */
+    public int findHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(buffer, headers[i * 4], headers[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean methodEquals(String method) { return equals(buffer, methodStart, methodEnd, method); }
+
+    public boolean isHttp11() { return versionEnd - versionStart == 8 && equals(buffer, versionStart, versionEnd, "HTTP/1.1"); }
+
+    /**
+     * @return true if any header with the given name lists the token in its comma-separated value (eg. Connection: close)
+     */
+    public boolean hasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(buffer, headers[i * 4], headers[i * 4 + 1], name)) {
+                continue;
+            }
+
+            int end = headers[i * 4 + 3];
+            int start = headers[i * 4 + 2];
+            while (start < end) {
+                int comma = indexOf(buffer, start, end, (byte) ',');
+                int tokenEnd = comma == -1 ? end : comma;
+                int s = start;
+                int e = tokenEnd;
+                while (s < e && isWhitespace(buffer[s])) {
+                    s++;
+                }
+                while (e > s && isWhitespace(buffer[e - 1])) {
+                    e--;
+                }
+                if (equalsIgnoreCase(buffer, s, e, token)) {
+                    return true;
+                }
+                start = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the header at the index is named as a connection option in any Connection header, making it hop-by-hop (RFC 7230 6.1)
+     */
+    public boolean isConnectionOption(int index) {
+        int nameStart = headers[index * 4];
+        int nameEnd = headers[index * 4 + 1];
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(buffer, headers[i * 4], headers[i * 4 + 1], "Connection")) {
+                continue;
+            }
+
+            int end = headers[i * 4 + 3];
+            int start = headers[i * 4 + 2];
+            while (start < end) {
+                int comma = indexOf(buffer, start, end, (byte) ',');
+                int tokenEnd = comma == -1 ? end : comma;
+                int s = start;
+                int e = tokenEnd;
+                while (s < e && isWhitespace(buffer[s])) {
+                    s++;
+                }
+                while (e > s && isWhitespace(buffer[e - 1])) {
+                    e--;
+                }
+                if (equalsIgnoreCase(buffer, s, e, nameStart, nameEnd)) {
+                    return true;
+                }
+                start = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the last transfer coding in a Transfer-Encoding header is chunked (RFC 7230 3.3.3)
+     */
+    public boolean isChunked() {
+        for (int i = headerCount - 1; i >= 0; i--) {
+            if (!equalsIgnoreCase(buffer, headers[i * 4], headers[i * 4 + 1], "Transfer-Encoding")) {
+                continue;
+            }
+
+            int start = headers[i * 4 + 2];
+            int end = headers[i * 4 + 3];
+            int comma = start - 1;
+            for (int j = end - 1; j >= start; j--) {
+                if (buffer[j] == ',') {
+                    comma = j;
+                    break;
+                }
+            }
+            int s = comma + 1;
+            while (s < end && isWhitespace(buffer[s])) {
+                s++;
+            }
+            return equalsIgnoreCase(buffer, s, end, "chunked");
+        }
+        return false;
+    }
+
+    /**
+     * @return the Content-Length, -1 if there isn't one, or -2 if it's invalid or repeated with different values
+     */
+    public long getContentLength() {
+        long retVal = -1L;
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(buffer, headers[i * 4], headers[i * 4 + 1], "Content-Length")) {
+                continue;
+            }
+
+            int start = headers[i * 4 + 2];
+            int end = headers[i * 4 + 3];
+            if (start == end || end - start > 18) {
+                return -2L;
+            }
+
+            long value = 0L;
+            for (int j = start; j < end; j++) {
+                byte b = buffer[j];
+                if (b < '0' || b > '9') {
+                    return -2L;
+                }
+                value = value * 10L + (b - '0');
+            }
+            if (retVal != -1L && retVal != value) {
+                return -2L;
+            }
+            retVal = value;
+        }
+        return retVal;
+    }
+
+    public static boolean equals(byte[] buffer, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean equalsIgnoreCase(byte[] buffer, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (toLower(buffer[start + i]) != toLower((byte) value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] buffer, int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (toLower(buffer[start + i]) != toLower(buffer[otherStart + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseRequestLine(int start, int end) {
+        int methodEnd = indexOf(buffer, start, end, (byte) ' ');
+        if (methodEnd <= start) {
+            return false;
+        }
+        for (int i = start; i < methodEnd; i++) {
+            if (!isTokenChar(buffer[i])) {
+                return false;
+            }
+        }
+
+        int targetEnd = indexOf(buffer, methodEnd + 1, end, (byte) ' ');
+        if (targetEnd <= methodEnd + 1) {
+            return false;
+        }
+
+        int versionStart = targetEnd + 1;
+        if (end - versionStart < 8 || !equals(buffer, versionStart, versionStart + 5, "HTTP/") || indexOf(buffer, versionStart, end, (byte) ' ') != -1) {
+            return false;
+        }
+
+        this.methodStart = start;
+        this.methodEnd = methodEnd;
+        this.targetStart = methodEnd + 1;
+        this.targetEnd = targetEnd;
+        this.versionStart = versionStart;
+        this.versionEnd = end;
+        this.requestLineEnd = end;
+        return true;
+    }
+
+    private boolean parseStatusLine(int start, int end) {
+        int versionEnd = indexOf(buffer, start, end, (byte) ' ');
+        if (versionEnd - start < 8 || !equals(buffer, start, start + 5, "HTTP/")) {
+            return false;
+        }
+
+        int statusStart = versionEnd + 1;
+        if (end - statusStart < 3 || (end - statusStart > 3 && buffer[statusStart + 3] != ' ')) {
+            return false;
+        }
+
+        int value = 0;
+        for (int i = statusStart; i < statusStart + 3; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            value = value * 10 + (b - '0');
+        }
+
+        this.versionStart = start;
+        this.versionEnd = versionEnd;
+        this.status = value;
+        this.requestLineEnd = end;
+        return true;
+    }
+
+    private boolean parseHeader(int start, int end) {
+        if (headerCount >= MAX_HEADERS) {
+            return false;
+        }
+
+        // No obs-fold continuation lines, and no whitespace between the name and colon (RFC 7230 3.2.4)
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon <= start) {
+            return false;
+        }
+        for (int i = start; i < colon; i++) {
+            if (!isTokenChar(buffer[i])) {
+                return false;
+            }
+        }
+
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(buffer[valueStart])) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        int i = headerCount * 4;
+        headers[i] = start;
+        headers[i + 1] = colon;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+        headerCount++;
+        return true;
+    }
+
+    private boolean parseTarget() {
+        if (methodEquals("CONNECT")) {
+            connect = true;
+            secure = true;
+            return parseAuthority(targetStart, targetEnd, 443);
+        }
+
+        int authorityStart;
+        int defaultPort;
+        if (startsWithIgnoreCase(buffer, targetStart, targetEnd, "http://")) {
+            authorityStart = targetStart + 7;
+            defaultPort = 80;
+        } else if (startsWithIgnoreCase(buffer, targetStart, targetEnd, "https://")) {
+            authorityStart = targetStart + 8;
+            defaultPort = 443;
+            secure = true;
+        } else {
+            // A forward proxy needs absolute-form (RFC 7230 5.3.2)
+            return false;
+        }
+
+        int authorityEnd = authorityStart;
+        while (authorityEnd < targetEnd && buffer[authorityEnd] != '/' && buffer[authorityEnd] != '?' && buffer[authorityEnd] != '#') {
+            authorityEnd++;
+        }
+        pathStart = authorityEnd;
+
+        for (int i = authorityEnd - 1; i >= authorityStart; i--) {
+            if (buffer[i] == '@') {
+                authorityStart = i + 1;
+                break;
+            }
+        }
+        return parseAuthority(authorityStart, authorityEnd, defaultPort);
+    }
+
+    private boolean parseAuthority(int start, int end, int defaultPort) {
+        int portStart;
+        if (start < end && buffer[start] == '[') {
+            int close = indexOf(buffer, start, end, (byte) ']');
+            if (close == -1) {
+                return false;
+            }
+            hostStart = start + 1;
+            hostEnd = close;
+            if (close + 1 == end) {
+                portStart = -1;
+            } else if (buffer[close + 1] == ':') {
+                portStart = close + 2;
+            } else {
+                return false;
+            }
+        } else {
+            int colon = indexOf(buffer, start, end, (byte) ':');
+            hostStart = start;
+            hostEnd = colon == -1 ? end : colon;
+            portStart = colon == -1 ? -1 : colon + 1;
+        }
+
+        if (hostEnd <= hostStart) {
+            return false;
+        }
+
+        if (portStart == -1) {
+            port = defaultPort;
+            return true;
+        }
+        if (portStart == end || end - portStart > 5) {
+            return false;
+        }
+
+        int value = 0;
+        for (int i = portStart; i < end; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            value = value * 10 + (b - '0');
+        }
+        if (value < 1 || value > 65535) {
+            return false;
+        }
+        port = value;
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buffer, int start, int end, String prefix) {
+        return end - start >= prefix.length() && equalsIgnoreCase(buffer, start, start + prefix.length(), prefix);
+    }
+
+    private static byte toLower(byte b) { return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b; }
+
+    private static boolean isWhitespace(byte b) { return b == ' ' || b == '\t'; }
+
+    // tchar from RFC 7230 3.2.6
+    private static boolean isTokenChar(byte b) {
+        if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')) {
+            return true;
+        }
+        switch (b) {
+            case '!': case '#': case '$': case '%': case '&': case '\'': case '*':
+            case '+': case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package me.egg82.btorce.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffered input for one side of an HTTP/1.x connection.
+ * Heads are parsed in place at the start of the buffer, and whatever was read past them stays buffered for the body or the next message.
+ */
+public class HttpInput extends InputStream {
+    private static final int MAX_LINE_SIZE = 8192;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+
+    public HttpInput(InputStream in) { this(in, new byte[0]); }
+
+    public HttpInput(InputStream in, byte[] initial) {
+        this.in = in;
+        this.buffer = new byte[Math.max(4096, initial.length)];
+        System.arraycopy(initial, 0, buffer, 0, initial.length);
+        this.end = initial.length;
+    }
+
+    /**
+     * Reads the next head into the start of the buffer and parses it.
+     * The parser's offsets stay valid until the next call that reads from this input.
+     *
+     * @return the parse result, or null if the stream ended cleanly before any bytes of a new head arrived
+     */
+    public HttpHeadParser.Result readHead(HttpHeadParser parser) throws IOException {
+        compact();
+        parser.reset();
+
+        HttpHeadParser.Result result = end > 0 ? parser.parse(buffer, 0, end) : HttpHeadParser.Result.INCOMPLETE;
+        while (result == HttpHeadParser.Result.INCOMPLETE) {
+            if (end == buffer.length) {
+                if (buffer.length >= HttpHeadParser.MAX_HEAD_SIZE) {
+                    // Never read into a full buffer, that returns 0 forever
+                    return HttpHeadParser.Result.TOO_LARGE;
+                }
+                grow(HttpHeadParser.MAX_HEAD_SIZE);
+            }
+
+            int bytesRead = in.read(buffer, end, buffer.length - end);
+            if (bytesRead == -1) {
+                return end == 0 ? null : HttpHeadParser.Result.MALFORMED;
+            }
+            end += bytesRead;
+            result = parser.parse(buffer, 0, end);
+        }
+
+        if (result == HttpHeadParser.Result.COMPLETE) {
+            start = parser.getHeadEnd();
+        }
+        return result;
+    }
+
+    public int read() throws IOException {
+        if (start == end && fill() == -1) {
+            return -1;
+        }
+        return buffer[start++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (start < end) {
+            int count = Math.min(len, end - start);
+            System.arraycopy(buffer, start, b, off, count);
+            start += count;
+            return count;
+        }
+        // Nothing buffered, so skip the extra copy
+        return in.read(b, off, len);
+    }
+
+    public int available() throws IOException { return (end - start) + in.available(); }
+
+    public void close() throws IOException { in.close(); }
+
+    public byte[] getBuffer() { return buffer; }
+
+    public int getBuffered() { return end - start; }
+
+    /**
+     * Writes out anything buffered past the last head, eg. before switching to a raw tunnel.
+     */
+    public void drainTo(OutputStream out) throws IOException {
+        if (end > start) {
+            out.write(buffer, start, end - start);
+        }
+        start = end = 0;
+    }
+
+    public void copy(OutputStream out, long length) throws IOException {
+        while (length > 0L) {
+            if (start == end && fill() == -1) {
+                throw new EOFException("Stream closed before end of body");
+            }
+
+            int count = (int) Math.min(length, end - start);
+            out.write(buffer, start, count);
+            start += count;
+            length -= count;
+        }
+    }
+
+    public long copyUntilEof(OutputStream out) throws IOException {
+        long retVal = 0L;
+        while (start < end || fill() != -1) {
+            out.write(buffer, start, end - start);
+            retVal += end - start;
+            start = end;
+            out.flush();
+        }
+        return retVal;
+    }
+
+    /**
+     * Copies a chunked body verbatim, including chunk extensions and trailers (RFC 7230 4.1).
+     * Framing is checked strictly, since a body that ends somewhere other than where it claims would leave the rest to be read as the next message.
+     *
+     * @return the number of bytes copied
+     * @throws IOException if a chunk size line is invalid or chunk data isn't followed by CRLF
+     */
+    public long copyChunked(OutputStream out) throws IOException {
+        long retVal = 0L;
+        while (true) {
+            int lineEnd = readLine();
+            long size = parseChunkSize(start, lineEnd);
+            if (size < 0L) {
+                throw new IOException("Invalid chunk size");
+            }
+            out.write(buffer, start, lineEnd - start);
+            retVal += lineEnd - start;
+            start = lineEnd;
+
+            if (size == 0L) {
+                // Trailer section, ending with an empty line
+                while (true) {
+                    lineEnd = readLine();
+                    boolean empty = lineEnd - start <= 2;
+                    out.write(buffer, start, lineEnd - start);
+                    retVal += lineEnd - start;
+                    start = lineEnd;
+                    if (empty) {
+                        return retVal;
+                    }
+                }
+            }
+
+            copy(out, size);
+            while (end - start < 2) {
+                compact();
+                if (fill() == -1) {
+                    throw new EOFException("Stream closed before end of body");
+                }
+            }
+            if (buffer[start] != '\r' || buffer[start + 1] != '\n') {
+                throw new IOException("Chunk data not followed by CRLF");
+            }
+            out.write(buffer, start, 2);
+            start += 2;
+            retVal += size + 2L;
+        }
+    }
+
+    /**
+     * Makes sure a full line is buffered.
+     *
+     * @return the index just past the line's LF
+     */
+    private int readLine() throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            if (end - start >= MAX_LINE_SIZE) {
+                throw new IOException("Line too long");
+            }
+
+            scanned = end - start;
+            compact();
+            if (end == buffer.length) {
+                grow(MAX_LINE_SIZE);
+            }
+            if (fill() == -1) {
+                throw new EOFException("Stream closed before end of body");
+            }
+            scanned += start;
+        }
+    }
+
+    /**
+     * Parses a chunk size line: hex digits, optional whitespace, an optional extension starting with ';', then CRLF.
+     *
+     * @param lineEnd the index just past the line's LF
+     * @return the chunk size, or -1 if the line is anything else
+     */
+    private long parseChunkSize(int lineStart, int lineEnd) {
+        int contentEnd = lineEnd - 2;
+        if (contentEnd < lineStart || buffer[contentEnd] != '\r') {
+            return -1L;
+        }
+
+        long retVal = 0L;
+        int digits = 0;
+        int i = lineStart;
+        for (; i < contentEnd; i++) {
+            byte b = buffer[i];
+            int value;
+            if (b >= '0' && b <= '9') {
+                value = b - '0';
+            } else if (b >= 'a' && b <= 'f') {
+                value = b - 'a' + 10;
+            } else if (b >= 'A' && b <= 'F') {
+                value = b - 'A' + 10;
+            } else {
+                break;
+            }
+            if (++digits > 15) {
+                return -1L;
+            }
+            retVal = (retVal << 4) | value;
+        }
+        if (digits == 0) {
+            return -1L;
+        }
+
+        while (i < contentEnd && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        if (i == contentEnd) {
+            return retVal;
+        }
+        if (buffer[i] != ';') {
+            return -1L;
+        }
+        // Extensions are passed along untouched, but can't hide control bytes like a stray CR
+        for (i++; i < contentEnd; i++) {
+            byte b = buffer[i];
+            if ((b < 0x20 && b != '\t') || b == 0x7F) {
+                return -1L;
+            }
+        }
+        return retVal;
+    }
+
+    private int fill() throws IOException {
+        if (start == end) {
+            start = end = 0;
+        }
+        if (end == buffer.length) {
+            compact();
+        }
+
+        int bytesRead = in.read(buffer, end, buffer.length - end);
+        if (bytesRead > 0) {
+            end += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    private void compact() {
+        if (start == 0) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+
+    private void grow(int max) throws IOException {
+        if (buffer.length >= max) {
+            throw new IOException("Buffer limit reached");
+        }
+
+        byte[] newBuffer = new byte[Math.min(buffer.length * 2, max)];
+        System.arraycopy(buffer, 0, newBuffer, 0, end);
+        buffer = newBuffer;
+    }
+}
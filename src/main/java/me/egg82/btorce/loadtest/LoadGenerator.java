@@ -0,0 +1,304 @@
+package me.egg82.btorce.loadtest;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives HTTP and CONNECT traffic through a running proxy and reports throughput and latency percentiles.
+ * Meant to be pointed at a proxy using the simulated backend, so scheduling and rotation can be load tested with no network.
+ * <pre>
+ * java -cp brute-torce-1.0.0.jar me.egg82.btorce.loadtest.LoadGenerator --proxy 127.0.0.1:13860 --mode mixed --concurrency 32 --duration 30 --size 16384
+ * </pre>
+ * Without --origin a local {@link OriginServer} is started to fetch from. --json prints the summary as one line of JSON instead.
+ */
+public class LoadGenerator {
+    private static final int MAX_HEAD = 65536;
+
+    private final InetSocketAddress proxy;
+    private final String originHost;
+    private final int originPort;
+    private final String mode;
+    private final int size;
+
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final List<long[]> latencies = new CopyOnWriteArrayList<>();
+
+    private volatile boolean running = true;
+
+    public LoadGenerator(InetSocketAddress proxy, String originHost, int originPort, String mode, int size) {
+        this.proxy = proxy;
+        this.originHost = originHost;
+        this.originPort = originPort;
+        this.mode = mode;
+        this.size = size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                continue;
+            }
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(args[i].substring(2), flag ? "true" : args[++i]);
+        }
+
+        String[] proxy = options.getOrDefault("proxy", "127.0.0.1:13860").split(":");
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        long duration = Long.parseLong(options.getOrDefault("duration", "30"));
+        String mode = options.getOrDefault("mode", "mixed");
+        int size = Integer.parseInt(options.getOrDefault("size", "16384"));
+
+        OriginServer origin = null;
+        String originHost;
+        int originPort;
+        if (options.containsKey("origin")) {
+            String[] address = options.get("origin").split(":");
+            originHost = address[0];
+            originPort = Integer.parseInt(address[1]);
+        } else {
+            origin = new OriginServer(0);
+            origin.start();
+            originHost = origin.getAddress().getAddress().getHostAddress();
+            originPort = origin.getAddress().getPort();
+        }
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(proxy[0], Integer.parseInt(proxy[1])), originHost, originPort, mode, size);
+        Summary summary = generator.run(concurrency, duration, TimeUnit.SECONDS);
+        System.out.println(options.containsKey("json") ? summary.toJson() : summary.toString());
+
+        if (origin != null) {
+            origin.stop();
+        }
+    }
+
+    public Summary run(int concurrency, long duration, TimeUnit unit) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread retVal = new Thread(r, "Load");
+            retVal.setDaemon(true);
+            return retVal;
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            int worker = i;
+            workers.execute(() -> work(worker));
+        }
+        unit.sleep(duration);
+        running = false;
+        workers.shutdown();
+        // Requests still in flight get a moment to finish, anything slower is abandoned
+        workers.awaitTermination(30L, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        int count = 0;
+        for (long[] samples : latencies) {
+            count += (int) samples[0];
+        }
+        long[] all = new long[count];
+        int offset = 0;
+        for (long[] samples : latencies) {
+            System.arraycopy(samples, 1, all, offset, (int) samples[0]);
+            offset += (int) samples[0];
+        }
+        Arrays.sort(all);
+        return new Summary(elapsed, ok.sum(), rejected.sum(), failed.sum(), errors.sum(), bytes.sum(), all);
+    }
+
+    private void work(int worker) {
+        // Slot 0 holds the sample count, so the arrays can be merged without another list
+        long[] samples = new long[1025];
+        Socket socket = null;
+        BufferedInputStream in = null;
+
+        while (running) {
+            boolean connect = mode.equals("connect") || (mode.equals("mixed") && worker % 2 == 1);
+            long start = System.nanoTime();
+            try {
+                if (connect || socket == null) {
+                    socket = new Socket(proxy.getAddress(), proxy.getPort());
+                    socket.setSoTimeout(60000);
+                    socket.setTcpNoDelay(true);
+                    in = new BufferedInputStream(socket.getInputStream());
+                }
+                OutputStream out = socket.getOutputStream();
+
+                String target = "/?size=" + size;
+                if (connect) {
+                    // A fresh tunnel per request, so every request is a new lease and a new Tor stream
+                    out.write(("CONNECT " + originHost + ":" + originPort + " HTTP/1.1\r\nHost: " + originHost + ":" + originPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    Response established = readResponse(in);
+                    if (established.status != 200) {
+                        record(established, start);
+                        socket = close(socket);
+                        continue;
+                    }
+                } else {
+                    // Absolute-form through a kept-alive proxy connection
+                    target = "http://" + originHost + ":" + originPort + target;
+                }
+
+                out.write(("GET " + target + " HTTP/1.1\r\nHost: " + originHost + ":" + originPort + "\r\n" + (connect ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                Response response = readResponse(in);
+                record(response, start);
+                if (response.status == 200) {
+                    samples = addSample(samples, System.nanoTime() - start);
+                }
+                if (connect || response.close) {
+                    socket = close(socket);
+                }
+            } catch (IOException ex) {
+                errors.increment();
+                socket = close(socket);
+            }
+        }
+        close(socket);
+        latencies.add(samples);
+    }
+
+    private void record(Response response, long start) {
+        if (response.status == 200) {
+            ok.increment();
+            bytes.add(response.length);
+        } else if (response.status == 503) {
+            rejected.increment();
+        } else {
+            failed.increment();
+        }
+    }
+
+    private static long[] addSample(long[] samples, long nanos) {
+        if (samples[0] + 1 >= samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[(int) ++samples[0]] = nanos;
+        return samples;
+    }
+
+    private static Response readResponse(BufferedInputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Proxy closed the connection mid-response");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (head.size() > MAX_HEAD) {
+                throw new IOException("Response head too large");
+            }
+        }
+
+        String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+        Response retVal = new Response();
+        retVal.status = Integer.parseInt(lines[0].split(" ")[1]);
+        long contentLength = 0L;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                retVal.close = true;
+            }
+        }
+
+        // CONNECT's 200 has no body, the tunnel starts right after the head
+        if (retVal.status == 200 && lines[0].contains("Connection established")) {
+            return retVal;
+        }
+        long remaining = contentLength;
+        byte[] buffer = new byte[8192];
+        while (remaining > 0L) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Proxy closed the connection mid-body");
+            }
+            remaining -= read;
+        }
+        retVal.length = contentLength;
+        return retVal;
+    }
+
+    private static Socket close(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+        return null;
+    }
+
+    private static class Response {
+        private int status;
+        private long length = 0L;
+        private boolean close = false;
+    }
+
+    public static class Summary {
+        private final long elapsedNanos;
+        private final long ok;
+        private final long rejected;
+        private final long failed;
+        private final long errors;
+        private final long bytes;
+        private final long[] sortedLatencies;
+
+        private Summary(long elapsedNanos, long ok, long rejected, long failed, long errors, long bytes, long[] sortedLatencies) {
+            this.elapsedNanos = elapsedNanos;
+            this.ok = ok;
+            this.rejected = rejected;
+            this.failed = failed;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.sortedLatencies = sortedLatencies;
+        }
+
+        public double getRequestsPerSecond() { return ok / (elapsedNanos / 1.0e9d); }
+
+        public double getMebibytesPerSecond() { return bytes / 1048576.0d / (elapsedNanos / 1.0e9d); }
+
+        /**
+         * @return the latency of successful requests at the percentile (0-100), in milliseconds
+         */
+        public double getPercentileMillis(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0.0d;
+            }
+            int index = (int) Math.ceil(percentile / 100.0d * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, index))] / 1.0e6d;
+        }
+
+        public String toString() {
+            return String.format("Requests: %d ok, %d rejected (503), %d failed (other status), %d errors in %.1fs%n"
+                            + "Throughput: %.1f req/s, %.2f MiB/s%n"
+                            + "Latency (ms): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                    ok, rejected, failed, errors, elapsedNanos / 1.0e9d,
+                    getRequestsPerSecond(), getMebibytesPerSecond(),
+                    getPercentileMillis(50.0d), getPercentileMillis(90.0d), getPercentileMillis(99.0d), getPercentileMillis(99.9d), getPercentileMillis(100.0d));
+        }
+
+        public String toJson() {
+            return String.format(Locale.ROOT, "{\"elapsed_seconds\":%.3f,\"ok\":%d,\"rejected\":%d,\"failed\":%d,\"errors\":%d,\"requests_per_second\":%.3f,\"mib_per_second\":%.3f,"
+                            + "\"latency_ms\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}}",
+                    elapsedNanos / 1.0e9d, ok, rejected, failed, errors, getRequestsPerSecond(), getMebibytesPerSecond(),
+                    getPercentileMillis(50.0d), getPercentileMillis(90.0d), getPercentileMillis(99.0d), getPercentileMillis(99.9d), getPercentileMillis(100.0d));
+        }
+    }
+}
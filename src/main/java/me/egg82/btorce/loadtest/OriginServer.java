@@ -0,0 +1,77 @@
+package me.egg82.btorce.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A local HTTP server for load tests to fetch from. GET /?size=N answers with N bytes of noise.
+ */
+public class OriginServer {
+    private static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    static {
+        // The head and body go out as separate writes, which Nagle holds back for a delayed ACK and adds ~40ms to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final byte[] noise = new byte[1024 * 1024];
+
+    public OriginServer(int port) throws IOException {
+        ThreadLocalRandom.current().nextBytes(noise);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread retVal = new Thread(r, "Origin");
+            retVal.setDaemon(true);
+            return retVal;
+        }));
+        server.createContext("/", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() { server.stop(0); }
+
+    public InetSocketAddress getAddress() { return server.getAddress(); }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        // Request bodies are read and thrown away, so uploads can be tested too
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) > -1) { }
+        }
+
+        int size = getSize(exchange.getRequestURI().getQuery());
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+        try (OutputStream out = exchange.getResponseBody()) {
+            int remaining = size;
+            while (remaining > 0) {
+                int length = Math.min(remaining, noise.length);
+                out.write(noise, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    private static int getSize(String query) {
+        if (query == null) {
+            return 1024;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.startsWith("size=")) {
+                try {
+                    return Math.max(0, Math.min(MAX_SIZE, Integer.parseInt(pair.substring(5))));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        return 1024;
+    }
+}
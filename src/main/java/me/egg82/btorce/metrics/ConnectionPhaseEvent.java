@@ -0,0 +1,59 @@
+package me.egg82.btorce.metrics;
+
+import jdk.jfr.*;
+
+@Name("btorce.ConnectionPhase")
+@Label("Connection Phase")
+@Category({ "BruteTorce", "Proxy" })
+@Description("One phase of a proxied client connection")
+@StackTrace(false)
+class ConnectionPhaseEvent extends Event implements PhaseSpan {
+    private static final EventType TYPE = EventType.getEventType(ConnectionPhaseEvent.class);
+
+    @Label("Connection")
+    @Description("Ties together the phases of one client connection")
+    long connection;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Circuit")
+    @Description("Index of the Tor client, or -1 if none was leased yet")
+    int circuit;
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    private ConnectionPhaseEvent() {}
+
+    /**
+     * @return true if any running recording has this event enabled
+     */
+    static boolean isRecorded() { return TYPE.isEnabled(); }
+
+    static ConnectionPhaseEvent begin(Phase phase, long connection) {
+        ConnectionPhaseEvent retVal = new ConnectionPhaseEvent();
+        retVal.phase = phase.name();
+        retVal.connection = connection;
+        retVal.begin();
+        return retVal;
+    }
+
+    public void finish(int circuit, String host, int port, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.circuit = circuit;
+            this.host = host;
+            this.port = port;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
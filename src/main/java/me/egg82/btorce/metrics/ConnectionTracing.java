@@ -0,0 +1,40 @@
+package me.egg82.btorce.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits a Java Flight Recorder event for each phase of each connection, when the running JVM has JFR.
+ * Events stay on in production instead of debug logging: unless a recording has them enabled, every span is a shared no-op and nothing is allocated.
+ * On JVMs without jdk.jfr every span is a shared no-op too. A recording started mid-phase only sees phases that begin after it.
+ */
+public class ConnectionTracing {
+    private static final boolean AVAILABLE = isAvailable();
+    private static final PhaseSpan NOOP = new PhaseSpan() {
+        public boolean isEnabled() { return false; }
+
+        public void finish(int circuit, String host, int port, long bytes) {}
+    };
+
+    private static final AtomicLong nextId = new AtomicLong(0L);
+
+    private ConnectionTracing() {}
+
+    /**
+     * @return an id that ties together the phases of one client connection
+     */
+    public static long nextId() { return nextId.incrementAndGet(); }
+
+    public static PhaseSpan begin(Phase phase, long connection) {
+        // The event class is only touched once JFR is known to exist, so it never loads without it
+        return AVAILABLE && ConnectionPhaseEvent.isRecorded() ? ConnectionPhaseEvent.begin(phase, connection) : NOOP;
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ignored) {
+            return false;
+        }
+    }
+}
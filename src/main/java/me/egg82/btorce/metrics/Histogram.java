@@ -0,0 +1,67 @@
+package me.egg82.btorce.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-bucket latency histogram in the Prometheus style.
+ * Recording is a scan over the bucket bounds and two atomic adds, so it never locks or allocates.
+ */
+public class Histogram {
+    // Tor streams are slow, so the buckets reach further than the usual web defaults
+    private static final double[] DEFAULT_BUCKETS = { 0.005d, 0.01d, 0.025d, 0.05d, 0.1d, 0.25d, 0.5d, 1.0d, 2.5d, 5.0d, 10.0d, 30.0d, 60.0d };
+
+    private final String name;
+    private final String help;
+    private final double[] bucketSeconds;
+    private final long[] bucketNanos;
+    // One count per bucket plus the +Inf bucket, not cumulative until written
+    private final AtomicLongArray counts;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram(String name, String help) { this(name, help, DEFAULT_BUCKETS); }
+
+    public Histogram(String name, String help, double[] bucketSeconds) {
+        this.name = name;
+        this.help = help;
+        this.bucketSeconds = bucketSeconds.clone();
+        this.bucketNanos = new long[bucketSeconds.length];
+        for (int i = 0; i < bucketSeconds.length; i++) {
+            bucketNanos[i] = (long) (bucketSeconds[i] * TimeUnit.SECONDS.toNanos(1L));
+        }
+        this.counts = new AtomicLongArray(bucketSeconds.length + 1);
+    }
+
+    public void observe(long nanos) {
+        int i = 0;
+        while (i < bucketNanos.length && nanos > bucketNanos[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+        long retVal = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            retVal += counts.get(i);
+        }
+        return retVal;
+    }
+
+    public void write(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+
+        long cumulative = 0L;
+        for (int i = 0; i < bucketSeconds.length; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{le=\"").append(bucketSeconds[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(bucketSeconds.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1L)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,88 @@
+package me.egg82.btorce.metrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import me.egg82.btorce.core.CircuitStats;
+import me.egg82.btorce.core.Proxy;
+import me.egg82.btorce.core.TorClientWrapper;
+
+/**
+ * Serves the proxy's metrics at /metrics in the Prometheus text format, on the loopback interface only.
+ * Gauges are read from the proxy when scraped, so nothing is sampled between scrapes.
+ */
+public class MetricsServer {
+    private final HttpServer server;
+    private final Proxy proxy;
+
+    public MetricsServer(int port, Proxy proxy) throws IOException {
+        this.proxy = proxy;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("Metrics-%d").setDaemon(true).build()));
+        server.createContext("/metrics", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() { server.stop(0); }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String render() {
+        StringBuilder out = new StringBuilder(4096);
+        proxy.getMetrics().write(out);
+
+        out.append("# HELP btorce_clients Tor clients by state.\n");
+        out.append("# TYPE btorce_clients gauge\n");
+        out.append("btorce_clients{state=\"serving\"} ").append(proxy.getScheduler().getServing()).append('\n');
+        out.append("btorce_clients{state=\"standby\"} ").append(proxy.getStandbyCount()).append('\n');
+        out.append("btorce_clients{state=\"bootstrapping\"} ").append(proxy.getBootstrapper().getBootstrapping()).append('\n');
+
+        ProxyMetrics.gauge(out, "btorce_lease_waiting", "Connections waiting to lease a Tor client.", proxy.getScheduler().getWaiting());
+        ProxyMetrics.gauge(out, "btorce_lease_idle", "Free streams across serving Tor clients.", proxy.getScheduler().getIdle());
+        ProxyMetrics.gauge(out, "btorce_connects_in_flight", "Tor stream connects running.", proxy.getConnectPool().getInFlight());
+        ProxyMetrics.gauge(out, "btorce_connects_pending", "Tor stream connects waiting for a thread.", proxy.getConnectPool().getPending());
+        ProxyMetrics.gauge(out, "btorce_admission_in_flight", "Connections being proxied.", proxy.getAdmission().getInFlight());
+        ProxyMetrics.gauge(out, "btorce_admission_pending", "Connections queued for admission.", proxy.getAdmission().getPending());
+        ProxyMetrics.counter(out, "btorce_hedges_total", "Connects raced against a second circuit.", proxy.getHedgeStats().getHedges());
+        ProxyMetrics.counter(out, "btorce_hedge_wins_total", "Hedged connects won by the second circuit.", proxy.getHedgeStats().getWins());
+
+        List<TorClientWrapper> clients = proxy.getScheduler().getClients();
+        out.append("# HELP btorce_circuit_requests Streams leased on the client's current circuit.\n");
+        out.append("# TYPE btorce_circuit_requests gauge\n");
+        for (TorClientWrapper client : clients) {
+            out.append("btorce_circuit_requests{client=\"").append(client.getIndex()).append("\"} ").append(client.getStats().getRequests()).append('\n');
+        }
+        out.append("# HELP btorce_circuit_bytes Bytes relayed over the client's current circuit.\n");
+        out.append("# TYPE btorce_circuit_bytes gauge\n");
+        for (TorClientWrapper client : clients) {
+            out.append("btorce_circuit_bytes{client=\"").append(client.getIndex()).append("\"} ").append(client.getStats().getBytes()).append('\n');
+        }
+        out.append("# HELP btorce_circuit_failures Failed connects on the client's current circuit.\n");
+        out.append("# TYPE btorce_circuit_failures gauge\n");
+        for (TorClientWrapper client : clients) {
+            out.append("btorce_circuit_failures{client=\"").append(client.getIndex()).append("\"} ").append(client.getStats().getFailures()).append('\n');
+        }
+        out.append("# HELP btorce_circuit_score_seconds Expected time for a new stream on the client to start returning data.\n");
+        out.append("# TYPE btorce_circuit_score_seconds gauge\n");
+        for (TorClientWrapper client : clients) {
+            CircuitStats stats = client.getStats();
+            out.append("btorce_circuit_score_seconds{client=\"").append(client.getIndex()).append("\"} ").append(stats.getScore() / 1000.0d).append('\n');
+        }
+        return out.toString();
+    }
+}
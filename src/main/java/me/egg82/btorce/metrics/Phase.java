@@ -0,0 +1,22 @@
+package me.egg82.btorce.metrics;
+
+/**
+ * The stages a proxied connection goes through, in order. Keep-alive connections repeat HEAD_PARSE through RELAY per request.
+ * Only LEASE through RELAY hold a Tor client, which is returned between requests.
+ */
+public enum Phase {
+    /** From accept until a handler thread picks the connection up, including any admission queueing */
+    ACCEPT,
+    /** Reading the request head, including the idle wait between kept-alive requests */
+    HEAD_PARSE,
+    /** Waiting for a free Tor client once the request head is in */
+    LEASE,
+    /** Opening the Tor stream to the remote, including retries and hedges */
+    CONNECT,
+    /** The TLS handshake with the remote for absolute https:// requests */
+    TLS,
+    /** Moving bodies or tunnelled bytes between the client and the remote */
+    RELAY,
+    /** Returning or closing the upstream stream and closing the client socket */
+    CLOSE
+}
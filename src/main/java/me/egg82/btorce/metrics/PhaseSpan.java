@@ -0,0 +1,21 @@
+package me.egg82.btorce.metrics;
+
+/**
+ * One timed phase of a connection, started by {@link ConnectionTracing#begin(Phase, long)}.
+ */
+public interface PhaseSpan {
+    /**
+     * @return false if nothing is recording this phase, so callers can skip building its fields
+     */
+    boolean isEnabled();
+
+    /**
+     * Ends the phase and records it if a recording wants it.
+     *
+     * @param circuit the index of the Tor client used, or -1 if none yet
+     * @param host the remote host, or null if not known yet
+     * @param port the remote port, or -1 if not known yet
+     * @param bytes the bytes moved during the phase
+     */
+    void finish(int circuit, String host, int port, long bytes);
+}
@@ -0,0 +1,98 @@
+package me.egg82.btorce.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms recorded by the proxy and its request handlers.
+ */
+public class ProxyMetrics {
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesUp = new LongAdder();
+    private final LongAdder bytesDown = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    private final Histogram admissionWait = new Histogram("btorce_admission_wait_seconds", "Time from accepting a connection to admitting it past max-connections.");
+    private final Histogram leaseWait = new Histogram("btorce_lease_wait_seconds", "Time spent waiting to lease a Tor client.");
+    private final Histogram connect = new Histogram("btorce_connect_seconds", "Time to open a Tor stream to the remote.");
+    private final Histogram firstByte = new Histogram("btorce_first_byte_seconds", "Time from sending a request upstream to receiving its response head.");
+
+    public ProxyMetrics() {}
+
+    public void recordAccepted() { accepted.increment(); }
+
+    /**
+     * A connection turned away with a 503, whether shed or out of clients to lease.
+     */
+    public void recordRejected() { rejected.increment(); }
+
+    /**
+     * A connection the remote couldn't be reached for.
+     */
+    public void recordFailed() { failed.increment(); }
+
+    public void recordBytesUp(long bytes) {
+        if (bytes > 0L) {
+            bytesUp.add(bytes);
+        }
+    }
+
+    public void recordBytesDown(long bytes) {
+        if (bytes > 0L) {
+            bytesDown.add(bytes);
+        }
+    }
+
+    public void recordRotation() { rotations.increment(); }
+
+    public void recordRebuild() { rebuilds.increment(); }
+
+    public void recordAdmissionWait(long nanos) { admissionWait.observe(nanos); }
+
+    public void recordLeaseWait(long nanos) { leaseWait.observe(nanos); }
+
+    public void recordConnect(long nanos) { connect.observe(nanos); }
+
+    public void recordFirstByte(long nanos) { firstByte.observe(nanos); }
+
+    public long getAccepted() { return accepted.sum(); }
+
+    public long getRejected() { return rejected.sum(); }
+
+    public long getFailed() { return failed.sum(); }
+
+    public long getBytesUp() { return bytesUp.sum(); }
+
+    public long getBytesDown() { return bytesDown.sum(); }
+
+    public void write(StringBuilder out) {
+        counter(out, "btorce_connections_accepted_total", "Client connections accepted.", accepted.sum());
+        counter(out, "btorce_connections_rejected_total", "Client connections sent a 503.", rejected.sum());
+        counter(out, "btorce_connections_failed_total", "Client connections sent a 502 or 504 because the remote couldn't be reached.", failed.sum());
+
+        out.append("# HELP btorce_bytes_relayed_total Bytes relayed through Tor.\n");
+        out.append("# TYPE btorce_bytes_relayed_total counter\n");
+        out.append("btorce_bytes_relayed_total{direction=\"upstream\"} ").append(bytesUp.sum()).append('\n');
+        out.append("btorce_bytes_relayed_total{direction=\"downstream\"} ").append(bytesDown.sum()).append('\n');
+
+        counter(out, "btorce_circuit_rotations_total", "Circuits replaced by requesting a new identity.", rotations.sum());
+        counter(out, "btorce_circuit_rebuilds_total", "Tor clients torn down and bootstrapped again.", rebuilds.sum());
+
+        admissionWait.write(out);
+        leaseWait.write(out);
+        connect.write(out);
+        firstByte.write(out);
+    }
+
+    static void counter(StringBuilder out, String name, String help, long value) { sample(out, name, help, "counter", value); }
+
+    static void gauge(StringBuilder out, String name, String help, double value) { sample(out, name, help, "gauge", value); }
+
+    private static void sample(StringBuilder out, String name, String help, String type, Object value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
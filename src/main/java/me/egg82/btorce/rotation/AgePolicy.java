@@ -0,0 +1,24 @@
+package me.egg82.btorce.rotation;
+
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Rotates once the circuit has been around for a while, however little it's been used.
+ * Age is checked when the circuit is picked for a lease and when a stream on it ends, so an idle circuit rotates when it's next picked instead of serving one more stream.
+ */
+public class AgePolicy implements RotationPolicy {
+    private final long maxAgeNanos;
+
+    public AgePolicy(long maxAge, TimeUnit unit) {
+        if (maxAge < 1L) {
+            throw new IllegalArgumentException("maxAge cannot be < 1");
+        }
+
+        this.maxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    public boolean shouldRotate(CircuitStats stats) { return stats.getAgeNanos() >= maxAgeNanos; }
+
+    public String toString() { return TimeUnit.NANOSECONDS.toSeconds(maxAgeNanos) + " seconds"; }
+}
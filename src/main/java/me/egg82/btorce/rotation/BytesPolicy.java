@@ -0,0 +1,22 @@
+package me.egg82.btorce.rotation;
+
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Rotates after a number of bytes have been relayed over the circuit, in either direction.
+ */
+public class BytesPolicy implements RotationPolicy {
+    private final long maxBytes;
+
+    public BytesPolicy(long maxBytes) {
+        if (maxBytes < 1L) {
+            throw new IllegalArgumentException("maxBytes cannot be < 1");
+        }
+
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean shouldRotate(CircuitStats stats) { return stats.getBytes() >= maxBytes; }
+
+    public String toString() { return (maxBytes / 1024L / 1024L) + " MiB"; }
+}
@@ -0,0 +1,36 @@
+package me.egg82.btorce.rotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Rotates as soon as any of its policies would. With no policies it never rotates.
+ */
+public class CompositePolicy implements RotationPolicy {
+    private final List<RotationPolicy> policies;
+
+    public CompositePolicy(Collection<RotationPolicy> policies) { this.policies = new ArrayList<>(policies); }
+
+    public boolean shouldRotate(CircuitStats stats) {
+        for (RotationPolicy policy : policies) {
+            if (policy.shouldRotate(stats)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isFailing(CircuitStats stats) {
+        for (RotationPolicy policy : policies) {
+            if (policy.isFailing(stats)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() { return policies.isEmpty() ? "never" : policies.stream().map(Object::toString).collect(Collectors.joining(" or ")); }
+}
@@ -0,0 +1,24 @@
+package me.egg82.btorce.rotation;
+
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Rotates after a number of failed or timed-out connections in total, whether or not they were in a row.
+ */
+public class FailurePolicy implements RotationPolicy {
+    private final long maxFailures;
+
+    public FailurePolicy(long maxFailures) {
+        if (maxFailures < 1L) {
+            throw new IllegalArgumentException("maxFailures cannot be < 1");
+        }
+
+        this.maxFailures = maxFailures;
+    }
+
+    public boolean shouldRotate(CircuitStats stats) { return stats.getFailures() >= maxFailures; }
+
+    public boolean isFailing(CircuitStats stats) { return shouldRotate(stats); }
+
+    public String toString() { return maxFailures + " failures"; }
+}
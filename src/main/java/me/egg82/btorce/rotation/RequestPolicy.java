@@ -0,0 +1,22 @@
+package me.egg82.btorce.rotation;
+
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Rotates after a number of streams have been leased on the circuit.
+ */
+public class RequestPolicy implements RotationPolicy {
+    private final int maxRequests;
+
+    public RequestPolicy(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests cannot be < 1");
+        }
+
+        this.maxRequests = maxRequests;
+    }
+
+    public boolean shouldRotate(CircuitStats stats) { return stats.getRequests() >= maxRequests; }
+
+    public String toString() { return maxRequests + " requests"; }
+}
@@ -0,0 +1,16 @@
+package me.egg82.btorce.rotation;
+
+import me.egg82.btorce.core.CircuitStats;
+
+/**
+ * Decides when a circuit has done enough work that it should be swapped for a new one.
+ * Policies are checked each time a stream is leased and each time one finishes, against the stats gathered since the circuit was built.
+ */
+public interface RotationPolicy {
+    boolean shouldRotate(CircuitStats stats);
+
+    /**
+     * @return true if the policy would rotate the circuit because it keeps failing rather than because it's been used up
+     */
+    default boolean isFailing(CircuitStats stats) { return false; }
+}
@@ -1,5 +1,10 @@
 package me.egg82.btorce.services;
 
+import java.util.Collections;
+import me.egg82.btorce.rotation.CompositePolicy;
+import me.egg82.btorce.rotation.RequestPolicy;
+import me.egg82.btorce.rotation.RotationPolicy;
+
 public class CachedConfigValues {
     private CachedConfigValues() {}
 
@@ -12,6 +17,66 @@ public class CachedConfigValues {
     private int maxUse = 5;
     public int getMaxUse() { return maxUse; }
 
+    private RotationPolicy rotationPolicy = new CompositePolicy(Collections.singletonList(new RequestPolicy(5)));
+    public RotationPolicy getRotationPolicy() { return rotationPolicy; }
+
+    private int keepAliveTimeout = 30;
+    public int getKeepAliveTimeout() { return keepAliveTimeout; }
+
+    private int headTimeout = 10;
+    public int getHeadTimeout() { return headTimeout; }
+
+    private int upstreamPoolSize = 4;
+    public int getUpstreamPoolSize() { return upstreamPoolSize; }
+
+    private int upstreamIdleTimeout = 15;
+    public int getUpstreamIdleTimeout() { return upstreamIdleTimeout; }
+
+    private int connectRetries = 2;
+    public int getConnectRetries() { return connectRetries; }
+
+    private int maxFailures = 3;
+    public int getMaxFailures() { return maxFailures; }
+
+    private int connectThreads = 0;
+    public int getConnectThreads() { return connectThreads; }
+
+    private boolean hedge = false;
+    public boolean getHedge() { return hedge; }
+
+    private double hedgePercentile = 95.0d;
+    public double getHedgePercentile() { return hedgePercentile; }
+
+    private double slowCircuitFactor = 3.0d;
+    public double getSlowCircuitFactor() { return slowCircuitFactor; }
+
+    private int leaseTimeout = 10;
+    public int getLeaseTimeout() { return leaseTimeout; }
+
+    private int maxConnections = 0;
+    public int getMaxConnections() { return maxConnections; }
+
+    private int maxPending = 0;
+    public int getMaxPending() { return maxPending; }
+
+    private long maxQueueWait = 5L;
+    public long getMaxQueueWait() { return maxQueueWait; }
+
+    private int retryAfter = 1;
+    public int getRetryAfter() { return retryAfter; }
+
+    private int streamsPerConnection = 1;
+    public int getStreamsPerConnection() { return streamsPerConnection; }
+
+    private boolean nio = false;
+    public boolean getNio() { return nio; }
+
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    public int getEventLoops() { return eventLoops; }
+
+    private boolean virtualThreads = false;
+    public boolean getVirtualThreads() { return virtualThreads; }
+
     public static CachedConfigValues.Builder builder() { return new CachedConfigValues.Builder(); }
 
     public static class Builder {
@@ -42,6 +107,174 @@ public class CachedConfigValues {
             return this;
         }
 
+        public CachedConfigValues.Builder rotationPolicy(RotationPolicy value) {
+            if (value == null) {
+                throw new IllegalArgumentException("value cannot be null");
+            }
+
+            values.rotationPolicy = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder keepAliveTimeout(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.keepAliveTimeout = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder headTimeout(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.headTimeout = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder upstreamPoolSize(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.upstreamPoolSize = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder upstreamIdleTimeout(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.upstreamIdleTimeout = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder connectRetries(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.connectRetries = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder maxFailures(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.maxFailures = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder connectThreads(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.connectThreads = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder hedge(boolean value) {
+            values.hedge = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder hedgePercentile(double value) {
+            if (value <= 0.0d || value > 100.0d) {
+                throw new IllegalArgumentException("value must be > 0 and <= 100");
+            }
+
+            values.hedgePercentile = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder slowCircuitFactor(double value) {
+            if (value < 0.0d) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.slowCircuitFactor = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder leaseTimeout(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.leaseTimeout = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder maxConnections(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.maxConnections = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder maxPending(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.maxPending = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder maxQueueWait(long value) {
+            if (value < 0L) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.maxQueueWait = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder retryAfter(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.retryAfter = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder streamsPerConnection(int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("value cannot be < 1");
+            }
+
+            values.streamsPerConnection = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder nio(boolean value) {
+            values.nio = value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder eventLoops(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("value cannot be < 0");
+            }
+
+            values.eventLoops = value == 0 ? Runtime.getRuntime().availableProcessors() : value;
+            return this;
+        }
+
+        public CachedConfigValues.Builder virtualThreads(boolean value) {
+            values.virtualThreads = value;
+            return this;
+        }
+
         public CachedConfigValues build() {
             return values;
         }
@@ -4,7 +4,11 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import me.egg82.btorce.rotation.*;
 import me.egg82.btorce.services.CachedConfigValues;
 import me.egg82.btorce.services.Configuration;
 import ninja.egg82.service.ServiceLocator;
@@ -46,12 +50,51 @@ public class ConfigurationFileUtil {
                 .debug(debug)
                 .timeout(config.getNode("tor", "timeout").getInt(20))
                 .maxUse(config.getNode("tor", "max-use").getInt(5))
+                .rotationPolicy(getRotationPolicy(config))
+                .keepAliveTimeout(config.getNode("tor", "keep-alive-timeout").getInt(30))
+                .headTimeout(config.getNode("tor", "head-timeout").getInt(10))
+                .upstreamPoolSize(config.getNode("tor", "upstream-pool-size").getInt(4))
+                .upstreamIdleTimeout(config.getNode("tor", "upstream-idle-timeout").getInt(15))
+                .connectRetries(config.getNode("tor", "connect-retries").getInt(2))
+                .maxFailures(config.getNode("tor", "max-failures").getInt(3))
+                .connectThreads(config.getNode("tor", "connect-threads").getInt(0))
+                .hedge(config.getNode("tor", "hedge").getBoolean(false))
+                .hedgePercentile(config.getNode("tor", "hedge-percentile").getDouble(95.0d))
+                .slowCircuitFactor(config.getNode("tor", "slow-circuit-factor").getDouble(3.0d))
+                .leaseTimeout(config.getNode("tor", "lease-timeout").getInt(10))
+                .maxConnections(config.getNode("tor", "max-connections").getInt(0))
+                .maxPending(config.getNode("tor", "max-pending").getInt(0))
+                .maxQueueWait(config.getNode("tor", "max-queue-wait").getLong(5L))
+                .retryAfter(config.getNode("tor", "retry-after").getInt(1))
+                .streamsPerConnection(config.getNode("tor", "streams-per-connection").getInt(1))
+                .nio(config.getNode("tor", "nio").getBoolean(false))
+                .eventLoops(config.getNode("tor", "event-loops").getInt(0))
+                .virtualThreads(config.getNode("tor", "virtual-threads").getBoolean(false))
                 .build();
 
         if (debug) {
             logger.debug("Connections: " + config.getNode("tor", "connections").getInt(10));
+            logger.debug("Standby connections: " + config.getNode("tor", "standby").getInt(1));
+            logger.debug("Directory refresh: " + config.getNode("tor", "directory-refresh").getString("3 hours"));
+            logger.debug("Min ready: " + config.getNode("tor", "min-ready").getInt(3));
+            logger.debug("Bootstrap: " + config.getNode("tor", "bootstrap-concurrency").getInt(4) + " at a time (" + config.getNode("tor", "bootstrap-timeout").getInt(120) + " second timeout)");
             logger.debug("Timeout: " + cachedValues.getTimeout());
             logger.debug("Max-Use: " + cachedValues.getMaxUse());
+            logger.debug("Rotation: after " + cachedValues.getRotationPolicy());
+            logger.debug("Keep-alive timeout: " + cachedValues.getKeepAliveTimeout());
+            logger.debug("Head timeout: " + cachedValues.getHeadTimeout());
+            logger.debug("Upstream pool: " + cachedValues.getUpstreamPoolSize() + " per host (" + cachedValues.getUpstreamIdleTimeout() + " second idle timeout)");
+            logger.debug("Connect retries: " + cachedValues.getConnectRetries());
+            logger.debug("Max failures: " + cachedValues.getMaxFailures());
+            logger.debug("Connect threads: " + (cachedValues.getConnectThreads() > 0 ? cachedValues.getConnectThreads() : "auto"));
+            logger.debug("Hedge: " + cachedValues.getHedge() + " (at p" + cachedValues.getHedgePercentile() + ")");
+            logger.debug("Slow circuit factor: " + cachedValues.getSlowCircuitFactor());
+            logger.debug("Lease timeout: " + cachedValues.getLeaseTimeout());
+            logger.debug("Max connections: " + (cachedValues.getMaxConnections() > 0 ? cachedValues.getMaxConnections() + " (" + cachedValues.getMaxPending() + " pending, " + cachedValues.getMaxQueueWait() + " second wait)" : "unlimited"));
+            logger.debug("Retry-After: " + cachedValues.getRetryAfter());
+            logger.debug("Streams per connection: " + cachedValues.getStreamsPerConnection());
+            logger.debug("NIO: " + cachedValues.getNio() + " (" + cachedValues.getEventLoops() + " event loops)");
+            logger.debug("Virtual threads: " + cachedValues.getVirtualThreads());
             logger.debug("Listen port: " + config.getNode("tor", "port").getInt(13860));
         }
 
@@ -59,6 +102,36 @@ public class ConfigurationFileUtil {
         ServiceLocator.register(cachedValues);
     }
 
+    private static RotationPolicy getRotationPolicy(Configuration config) {
+        List<RotationPolicy> policies = new ArrayList<>();
+
+        int maxUse = config.getNode("tor", "max-use").getInt(5);
+        if (maxUse > 0) {
+            policies.add(new RequestPolicy(maxUse));
+        }
+
+        long megabytes = config.getNode("tor", "rotation", "megabytes").getLong(0L);
+        if (megabytes > 0L) {
+            policies.add(new BytesPolicy(megabytes * 1024L * 1024L));
+        }
+
+        String age = config.getNode("tor", "rotation", "age").getString("0 minutes");
+        Optional<Long> ageTime = TimeUtil.getTime(age);
+        Optional<TimeUnit> ageUnit = TimeUtil.getUnit(age);
+        if (!ageTime.isPresent() || !ageUnit.isPresent()) {
+            logger.warn("rotation.age is not a valid time, circuits will not be rotated by age.");
+        } else if (ageTime.get() > 0L) {
+            policies.add(new AgePolicy(ageTime.get(), ageUnit.get()));
+        }
+
+        long failures = config.getNode("tor", "rotation", "failures").getLong(0L);
+        if (failures > 0L) {
+            policies.add(new FailurePolicy(failures));
+        }
+
+        return new CompositePolicy(policies);
+    }
+
     public static Configuration getConfig(String resourcePath, File fileOnDisk) throws IOException {
         File parentDir = fileOnDisk.getParentFile();
         if (parentDir.exists() && !parentDir.isDirectory()) {
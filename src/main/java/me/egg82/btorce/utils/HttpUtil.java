@@ -0,0 +1,37 @@
+package me.egg82.btorce.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+public class HttpUtil {
+    private HttpUtil() {}
+
+    public static void sendStatus(Socket socket, int code, String reason) throws IOException { sendStatus(socket, code, reason, -1); }
+
+    /**
+     * @param retryAfter the number of seconds to send in a Retry-After header, or -1 for none
+     */
+    public static void sendStatus(Socket socket, int code, String reason, int retryAfter) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + code + " " + reason + "\r\n"
+                + (retryAfter >= 0 ? "Retry-After: " + retryAfter + "\r\n" : "")
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "Proxy-agent: ProxyServer/1.0\r\n\r\n").getBytes(Charset.forName("ASCII")));
+        out.flush();
+    }
+
+    public static void reject(Socket socket, int code, String reason) { reject(socket, code, reason, -1); }
+
+    public static void reject(Socket socket, int code, String reason, int retryAfter) {
+        try {
+            sendStatus(socket, code, reason, retryAfter);
+        } catch (IOException ignored) {}
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,45 @@
+package me.egg82.btorce.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ThreadUtil {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadUtil.class);
+
+    private ThreadUtil() {}
+
+    /**
+     * Creates an executor that starts a new virtual thread per task, if the running JVM supports them.
+     * Looked up reflectively so the project still builds and runs on Java 8.
+     */
+    public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return Optional.of((ExecutorService) newExecutor.invoke(null, factory));
+        } catch (ClassNotFoundException | NoSuchMethodException ignored) {
+            return Optional.empty();
+        } catch (InvocationTargetException ex) {
+            // Java 19/20 without --enable-preview
+            if (ex.getCause() instanceof UnsupportedOperationException) {
+                logger.warn(ex.getCause().getMessage());
+                return Optional.empty();
+            }
+            logger.error(ex.getMessage(), ex);
+            return Optional.empty();
+        } catch (IllegalAccessException ex) {
+            logger.error(ex.getMessage(), ex);
+            return Optional.empty();
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package me.egg82.btorce.utils;
 
+import com.subgraph.orchid.Circuit;
+import com.subgraph.orchid.CircuitManager;
 import com.subgraph.orchid.TorClient;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.file.Files;
+import java.util.List;
+import me.egg82.btorce.core.SharedDirectoryStore;
+import ninja.egg82.service.ServiceLocator;
+import ninja.egg82.service.ServiceNotFoundException;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,9 +19,28 @@ import org.slf4j.LoggerFactory;
 public class TorUtil {
     private static final Logger logger = LoggerFactory.getLogger(TorUtil.class);
 
+    private static volatile Method exitCircuitsMethod = null;
+
     private TorUtil() {}
 
     public static TorClient getClient(int index, int port, File currentDirectory) {
+        SharedDirectoryStore directoryStore;
+        try {
+            directoryStore = ServiceLocator.get(SharedDirectoryStore.class);
+        } catch (InstantiationException | IllegalAccessException | ServiceNotFoundException ex) {
+            logger.error(ex.getMessage(), ex);
+            return getFileClient(index, port, currentDirectory);
+        }
+
+        // Every client reads the same in-memory directory cache instead of its own copy on disk
+        TorClient client = new TorClient(directoryStore.newView());
+        client.disableDashboard();
+        client.enableSocksListener(port);
+
+        return client;
+    }
+
+    private static TorClient getFileClient(int index, int port, File currentDirectory) {
         File cacheDir = new File(currentDirectory, "cache-" + index);
         if (cacheDir.exists() && cacheDir.isFile()) {
             try {
@@ -47,4 +74,37 @@ public class TorUtil {
 
         return client;
     }
+
+    /**
+     * Gives the client a new identity without restarting it, like Tor's NEWNYM signal.
+     * Every open exit circuit is marked for close so new streams go out over freshly-built circuits, while the client keeps its directory and guards.
+     * Orchid has no public API for this, so its exit circuit list is looked up reflectively.
+     *
+     * @return the number of circuits marked, or -1 if the client couldn't be rotated in place and needs rebuilding
+     */
+    public static int newIdentity(TorClient client) {
+        CircuitManager circuitManager = client.getCircuitManager();
+
+        List<?> circuits;
+        try {
+            Method method = exitCircuitsMethod;
+            if (method == null || method.getDeclaringClass() != circuitManager.getClass()) {
+                method = circuitManager.getClass().getDeclaredMethod("getRandomlyOrderedListOfExitCircuits");
+                method.setAccessible(true);
+                exitCircuitsMethod = method;
+            }
+            circuits = (List<?>) method.invoke(circuitManager);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | ClassCastException | SecurityException ex) {
+            logger.error(ex.getMessage(), ex);
+            return -1;
+        }
+
+        int retVal = 0;
+        for (Object circuit : circuits) {
+            // Streams still on the circuit finish normally, it just doesn't take any new ones
+            ((Circuit) circuit).markForClose();
+            retVal++;
+        }
+        return retVal;
+    }
 }
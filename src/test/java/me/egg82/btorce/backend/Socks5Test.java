@@ -0,0 +1,233 @@
+package me.egg82.btorce.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class Socks5Test {
+    private static final byte[] IPV4_BOUND = { 0x01, 127, 0, 0, 1, 0x1F, (byte) 0x90 };
+
+    @Test
+    void connectsWithUsernameAndPassword() throws Exception {
+        socks((in, out) -> {
+            authenticate(in, out, "user", "pass", 0x00);
+            expectRequest(in, "example.com", 443);
+            reply(out, 0x00, IPV4_BOUND);
+            out.write(bytes("hello"));
+        }, socket -> {
+            Socks5.connect(socket, "example.com", 443, "user", "pass");
+            assertEquals("hello", read(socket, 5));
+        });
+    }
+
+    @Test
+    void connectsWithoutAuthWhenServerAllowsIt() throws Exception {
+        socks((in, out) -> {
+            expectGreeting(in);
+            out.write(new byte[] { 0x05, 0x00 });
+            expectRequest(in, "example.com", 80);
+            reply(out, 0x00, IPV4_BOUND);
+        }, socket -> Socks5.connect(socket, "example.com", 80, "user", "pass"));
+    }
+
+    @Test
+    void authRejected() throws Exception {
+        socks((in, out) -> authenticate(in, out, "user", "wrong", 0x01), socket -> {
+            IOException ex = assertThrows(IOException.class, () -> Socks5.connect(socket, "example.com", 443, "user", "wrong"));
+            assertEquals("SOCKS authentication rejected", ex.getMessage());
+        });
+    }
+
+    @Test
+    void noAcceptableAuthMethod() throws Exception {
+        socks((in, out) -> {
+            expectGreeting(in);
+            out.write(new byte[] { 0x05, (byte) 0xFF });
+        }, socket -> {
+            IOException ex = assertThrows(IOException.class, () -> Socks5.connect(socket, "example.com", 443, "user", "pass"));
+            assertEquals("SOCKS server accepted no offered auth method", ex.getMessage());
+        });
+    }
+
+    @Test
+    void notSocks5() throws Exception {
+        socks((in, out) -> {
+            expectGreeting(in);
+            out.write(new byte[] { 0x04, 0x00 });
+        }, socket -> {
+            IOException ex = assertThrows(IOException.class, () -> Socks5.connect(socket, "example.com", 443, "user", "pass"));
+            assertEquals("Not a SOCKS5 server", ex.getMessage());
+        });
+    }
+
+    @Test
+    void replyCodes() throws Exception {
+        String[] reasons = {
+                "general failure",
+                "not allowed by ruleset",
+                "network unreachable",
+                "host unreachable",
+                "connection refused",
+                "TTL expired",
+                "command not supported",
+                "address type not supported",
+                "error 9"
+        };
+        for (int i = 0; i < reasons.length; i++) {
+            int code = i + 1;
+            String reason = reasons[i];
+            socks((in, out) -> {
+                authenticate(in, out, "user", "pass", 0x00);
+                expectRequest(in, "example.com", 443);
+                reply(out, code, IPV4_BOUND);
+            }, socket -> {
+                IOException ex = assertThrows(IOException.class, () -> Socks5.connect(socket, "example.com", 443, "user", "pass"));
+                assertEquals("SOCKS connect to example.com:443 failed: " + reason, ex.getMessage());
+            });
+        }
+    }
+
+    @Test
+    void domainBoundAddress() throws Exception {
+        byte[] name = bytes("exit.example.org");
+        ByteArrayOutputStream bound = new ByteArrayOutputStream();
+        bound.write(0x03);
+        bound.write(name.length);
+        bound.write(name);
+        bound.write(new byte[] { 0x00, 0x50 });
+
+        socks((in, out) -> {
+            authenticate(in, out, "user", "pass", 0x00);
+            expectRequest(in, "example.com", 80);
+            reply(out, 0x00, bound.toByteArray());
+            out.write(bytes("data"));
+        }, socket -> {
+            Socks5.connect(socket, "example.com", 80, "user", "pass");
+            // The bound address has to be read past exactly, or the stream would start in the middle of it
+            assertEquals("data", read(socket, 4));
+        });
+    }
+
+    @Test
+    void ipv6BoundAddress() throws Exception {
+        byte[] bound = new byte[1 + 16 + 2];
+        bound[0] = 0x04;
+        bound[16] = 0x01;
+
+        socks((in, out) -> {
+            authenticate(in, out, "user", "pass", 0x00);
+            expectRequest(in, "example.com", 80);
+            reply(out, 0x00, bound);
+            out.write(bytes("data"));
+        }, socket -> {
+            Socks5.connect(socket, "example.com", 80, "user", "pass");
+            assertEquals("data", read(socket, 4));
+        });
+    }
+
+    @Test
+    void badBoundAddressType() throws Exception {
+        socks((in, out) -> {
+            authenticate(in, out, "user", "pass", 0x00);
+            expectRequest(in, "example.com", 80);
+            reply(out, 0x00, new byte[] { 0x05 });
+        }, socket -> {
+            IOException ex = assertThrows(IOException.class, () -> Socks5.connect(socket, "example.com", 80, "user", "pass"));
+            assertEquals("Bad SOCKS address type 5", ex.getMessage());
+        });
+    }
+
+    @Test
+    void fieldTooLong() {
+        char[] host = new char[256];
+        Arrays.fill(host, 'a');
+        // Nothing should be sent at all, so no server is needed
+        IOException ex = assertThrows(IOException.class, () -> Socks5.connect(new Socket(), new String(host), 80, "user", "pass"));
+        assertEquals("SOCKS field too long", ex.getMessage());
+    }
+
+    private static void expectGreeting(DataInputStream in) throws IOException {
+        byte[] greeting = new byte[3];
+        in.readFully(greeting);
+        assertArrayEquals(new byte[] { 0x05, 0x01, 0x02 }, greeting);
+    }
+
+    private static void authenticate(DataInputStream in, OutputStream out, String username, String password, int status) throws IOException {
+        expectGreeting(in);
+        out.write(new byte[] { 0x05, 0x02 });
+
+        assertEquals(0x01, in.readUnsignedByte());
+        assertEquals(username, readString(in, in.readUnsignedByte()));
+        assertEquals(password, readString(in, in.readUnsignedByte()));
+        out.write(new byte[] { 0x01, (byte) status });
+    }
+
+    private static void expectRequest(DataInputStream in, String host, int port) throws IOException {
+        byte[] header = new byte[4];
+        in.readFully(header);
+        // Always a domain name, so the exit does the DNS lookup
+        assertArrayEquals(new byte[] { 0x05, 0x01, 0x00, 0x03 }, header);
+        assertEquals(host, readString(in, in.readUnsignedByte()));
+        assertEquals(port, in.readUnsignedShort());
+    }
+
+    private static void reply(OutputStream out, int code, byte[] bound) throws IOException {
+        out.write(new byte[] { 0x05, (byte) code, 0x00 });
+        out.write(bound);
+        out.flush();
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] retVal = new byte[length];
+        in.readFully(retVal);
+        return new String(retVal, StandardCharsets.UTF_8);
+    }
+
+    private static String read(Socket socket, int length) throws IOException { return readString(new DataInputStream(socket.getInputStream()), length); }
+
+    private static byte[] bytes(String value) { return value.getBytes(StandardCharsets.UTF_8); }
+
+    /**
+     * Runs the server side of one SOCKS conversation on a loopback port while the client side talks to it.
+     */
+    private static void socks(ServerScript server, ClientScript client) throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+                try (Socket accepted = listener.accept()) {
+                    server.run(new DataInputStream(accepted.getInputStream()), accepted.getOutputStream());
+                    accepted.getOutputStream().flush();
+                    // Hold the connection open until the client is done with it. A reset only means it hung up with some of the reply unread
+                    try {
+                        accepted.getInputStream().read();
+                    } catch (SocketException ignored) {}
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            try (Socket socket = new Socket()) {
+                socket.connect(listener.getLocalSocketAddress(), 5000);
+                socket.setSoTimeout(5000);
+                client.run(socket);
+            }
+            done.get(5L, TimeUnit.SECONDS);
+        }
+    }
+
+    private interface ServerScript {
+        void run(DataInputStream in, OutputStream out) throws IOException;
+    }
+
+    private interface ClientScript {
+        void run(Socket socket) throws IOException;
+    }
+}
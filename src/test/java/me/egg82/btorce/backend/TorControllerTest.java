@@ -0,0 +1,170 @@
+package me.egg82.btorce.backend;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TorControllerTest {
+    private static final String BOOTSTRAPPED = "250-status/bootstrap-phase=NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"\r\n250 OK\r\n";
+
+    @Test
+    void bootstrapProgress() throws Exception {
+        try (StandIn tor = new StandIn(command -> command.startsWith("AUTHENTICATE") ? "250 OK\r\n" : BOOTSTRAPPED)) {
+            TorController controller = tor.controller(null, null);
+            assertEquals(100, controller.getBootstrapProgress());
+            // The connection is kept open between commands
+            assertEquals(100, controller.getBootstrapProgress());
+            assertEquals(1, tor.getConnections());
+            controller.close();
+        }
+    }
+
+    @Test
+    void multiLineReply() throws Exception {
+        try (StandIn tor = new StandIn(command -> command.startsWith("AUTHENTICATE") ? "250 OK\r\n"
+                : "250+status/bootstrap-phase=\r\nNOTICE BOOTSTRAP PROGRESS=85 TAG=loading_descriptors\r\n.\r\n250 OK\r\n")) {
+            TorController controller = tor.controller(null, null);
+            assertEquals(85, controller.getBootstrapProgress());
+            // The lone dot and the final line have to be read past, or the next command would get this reply's tail
+            assertEquals(85, controller.getBootstrapProgress());
+            controller.close();
+        }
+    }
+
+    @Test
+    void passwordAuthentication() throws Exception {
+        try (StandIn tor = new StandIn(command -> command.startsWith("AUTHENTICATE") ? "250 OK\r\n" : BOOTSTRAPPED)) {
+            TorController controller = tor.controller("pa\"ss\\word", null);
+            controller.getBootstrapProgress();
+            assertEquals("AUTHENTICATE \"pa\\\"ss\\\\word\"", tor.getReceived().get(0));
+            controller.close();
+        }
+    }
+
+    @Test
+    void cookieAuthentication() throws Exception {
+        File cookie = File.createTempFile("control_auth_cookie", null);
+        cookie.deleteOnExit();
+        Files.write(cookie.toPath(), new byte[] { 0x00, 0x7F, (byte) 0xAB });
+
+        try (StandIn tor = new StandIn(command -> command.startsWith("AUTHENTICATE") ? "250 OK\r\n" : BOOTSTRAPPED)) {
+            TorController controller = tor.controller(null, cookie);
+            controller.getBootstrapProgress();
+            assertEquals("AUTHENTICATE 007fab", tor.getReceived().get(0));
+            controller.close();
+        }
+    }
+
+    @Test
+    void authenticationFailure() throws Exception {
+        try (StandIn tor = new StandIn(command -> command.startsWith("AUTHENTICATE") ? "515 Authentication failed: Password did not match\r\n" : BOOTSTRAPPED)) {
+            TorController controller = tor.controller("wrong", null);
+            IOException ex = assertThrows(IOException.class, controller::getBootstrapProgress);
+            assertEquals("\"AUTHENTICATE\" failed: 515 Authentication failed: Password did not match", ex.getMessage());
+
+            // Nothing past the failed AUTHENTICATE should be sent, and the next command starts over on a new connection
+            assertThrows(IOException.class, controller::getBootstrapProgress);
+            assertEquals(2, tor.getConnections());
+            assertEquals(2, tor.getReceived().size());
+            controller.close();
+        }
+    }
+
+    @Test
+    void reconnectsAfterEof() throws Exception {
+        AtomicInteger infos = new AtomicInteger();
+        try (StandIn tor = new StandIn(command -> {
+            if (command.startsWith("AUTHENTICATE")) {
+                return "250 OK\r\n";
+            }
+            // Hang up instead of answering the second GETINFO, like a daemon that was restarted
+            return infos.incrementAndGet() == 2 ? null : BOOTSTRAPPED;
+        })) {
+            TorController controller = tor.controller(null, null);
+            assertEquals(100, controller.getBootstrapProgress());
+            assertThrows(EOFException.class, controller::getBootstrapProgress);
+            assertEquals(100, controller.getBootstrapProgress());
+            assertEquals(2, tor.getConnections());
+            controller.close();
+        }
+    }
+
+    @Test
+    void newIdentityIsRateLimited() throws Exception {
+        try (StandIn tor = new StandIn(command -> "250 OK\r\n")) {
+            TorController controller = tor.controller(null, null);
+            assertTrue(controller.newIdentity());
+            assertFalse(controller.newIdentity());
+            assertEquals(Collections.singletonList("SIGNAL NEWNYM"), tor.getReceived().subList(1, tor.getReceived().size()));
+            controller.close();
+        }
+    }
+
+    /**
+     * A ControlPort on loopback that answers one connection at a time, one command at a time.
+     */
+    private static class StandIn implements Closeable {
+        private final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        private final Replies replies;
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private final Thread thread = new Thread(this::run, "TorControllerTest-StandIn");
+
+        private StandIn(Replies replies) throws IOException {
+            this.replies = replies;
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private TorController controller(String password, File cookie) { return new TorController(new InetSocketAddress(listener.getInetAddress(), listener.getLocalPort()), password, cookie, 5000); }
+
+        private int getConnections() { return connections.get(); }
+
+        private List<String> getReceived() { return new ArrayList<>(received); }
+
+        public void close() throws IOException { listener.close(); }
+
+        private void run() {
+            while (!listener.isClosed()) {
+                try (Socket socket = listener.accept()) {
+                    connections.incrementAndGet();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        received.add(line);
+                        String reply = replies.reply(line);
+                        if (reply == null) {
+                            break;
+                        }
+                        out.write(reply);
+                        out.flush();
+                        // tor hangs up after a failed AUTHENTICATE
+                        if (reply.startsWith("515")) {
+                            break;
+                        }
+                    }
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private interface Replies {
+        /**
+         * @return the full reply to send, or null to hang up without one
+         */
+        String reply(String command);
+    }
+}
@@ -0,0 +1,83 @@
+package me.egg82.btorce.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class HttpInputTest {
+    @Test
+    void chunkedBodyIsCopiedVerbatim() throws IOException {
+        String body = "5\r\nhello\r\n6;name=value\r\n world\r\n0\r\nTrailer: x\r\n\r\n";
+        HttpInput input = input(body + "NEXT");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(body.length(), input.copyChunked(out));
+        assertEquals(body, out.toString("ISO-8859-1"));
+        // Whatever follows the body stays buffered for the next message
+        assertEquals(4, input.getBuffered());
+    }
+
+    @Test
+    void whitespaceBeforeExtensionOrLineEnd() throws IOException {
+        assertEquals(19, copy("5 \r\nhello\r\n0\t;x\r\n\r\n"));
+    }
+
+    @Test
+    void invalidChunkSizes() {
+        assertInvalid("5 junk\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("5\u0000\r\nhello\r\n0\r\n\r\n");
+        // Would read as 0 and end the body early if parsing stopped at the first non-hex byte
+        assertInvalid("0x5\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("-5\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("5;ext\rmore\r\nhello\r\n0\r\n\r\n");
+        assertInvalid("5\nhello\r\n0\r\n\r\n");
+        assertInvalid("1000000000000000\r\n");
+    }
+
+    @Test
+    void chunkDataMustEndWithCrlf() {
+        // Data longer than its size would otherwise have its tail read as the next chunk, or the next message
+        assertInvalid("5\r\nhello!\r\n0\r\n\r\n");
+        assertInvalid("5\r\nhelloXY0\r\n\r\n");
+        assertInvalid("5\r\nhello\n0\r\n\r\n");
+    }
+
+    @Test
+    void crlfSplitAcrossReads() throws IOException {
+        String body = "5\r\nhello\r\n0\r\n\r\n";
+        HttpInput input = new HttpInput(new OneByteInputStream(bytes(body)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(body.length(), input.copyChunked(out));
+        assertEquals(body, out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    void truncatedBody() {
+        assertThrows(IOException.class, () -> copy("5\r\nhel"));
+        assertThrows(IOException.class, () -> copy("5\r\nhello\r"));
+    }
+
+    private static void assertInvalid(String body) {
+        IOException ex = assertThrows(IOException.class, () -> copy(body));
+        assertNotEquals("Stream closed before end of body", ex.getMessage());
+    }
+
+    private static long copy(String body) throws IOException { return input(body).copyChunked(new ByteArrayOutputStream()); }
+
+    private static HttpInput input(String value) { return new HttpInput(new ByteArrayInputStream(bytes(value))); }
+
+    private static byte[] bytes(String value) { return value.getBytes(StandardCharsets.ISO_8859_1); }
+
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        private OneByteInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        public synchronized int read(byte[] b, int off, int len) { return super.read(b, off, Math.min(len, 1)); }
+    }
+}